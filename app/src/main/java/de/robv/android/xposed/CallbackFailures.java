@@ -0,0 +1,192 @@
+package de.robv.android.xposed;
+
+import android.os.SystemClock;
+
+import java.lang.reflect.Member;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Information about exceptions thrown by a callback of a hooked method.
+ *
+ * <p>Xposed counts how often each callback fails. The stack trace for each distinct failure is
+ * logged once, repetitions are summarized periodically. Callbacks which fail too often in a row
+ * are quarantined, i.e. they aren't called anymore, see {@link XposedBridge#setQuarantineThreshold}.
+ * Use {@link XposedBridge#getCallbackFailures} to get a snapshot of this information.
+ */
+public final class CallbackFailures {
+	private final XC_MethodHook callback;
+	private final long failures;
+	private final int consecutiveFailures;
+	private final boolean quarantined;
+	private final Throwable lastFailure;
+
+	private CallbackFailures(Recorder recorder) {
+		this.callback = recorder.callback;
+		this.failures = recorder.failures.get();
+		this.consecutiveFailures = recorder.consecutiveFailures;
+		this.quarantined = recorder.callback.quarantined;
+		this.lastFailure = recorder.lastFailure;
+	}
+
+	/** Returns the callback. */
+	public XC_MethodHook getCallback() {
+		return callback;
+	}
+
+	/** Returns how often the callback has thrown an exception. */
+	public long getFailures() {
+		return failures;
+	}
+
+	/** Returns how often the callback has thrown an exception since it last returned normally. */
+	public int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	/** Returns whether the callback has been quarantined. */
+	public boolean isQuarantined() {
+		return quarantined;
+	}
+
+	/** Returns the last exception thrown by the callback. */
+	public Throwable getLastFailure() {
+		return lastFailure;
+	}
+
+	@Override
+	public String toString() {
+		return callback + ": " + failures + " failures (" + consecutiveFailures + " in a row)"
+				+ (quarantined ? ", quarantined" : "") + ", last: " + lastFailure;
+	}
+
+	// Recording of failures.
+	private static final long SUMMARY_INTERVAL_MS = 10 * 1000;
+	private static final int MAX_DISTINCT_FAILURES = 8;
+	private static final List<Recorder> sRecorders = new ArrayList<>();
+
+	/*package*/ static List<CallbackFailures> snapshot() {
+		synchronized (sRecorders) {
+			List<CallbackFailures> result = new ArrayList<>(sRecorders.size());
+			for (Recorder recorder : sRecorders)
+				result.add(new CallbackFailures(recorder));
+			return result;
+		}
+	}
+
+	/*package*/ static Recorder getRecorder(XC_MethodHook callback) {
+		Recorder recorder = callback.failures;
+		if (recorder == null) {
+			synchronized (sRecorders) {
+				recorder = callback.failures;
+				if (recorder == null) {
+					callback.failures = recorder = new Recorder(callback);
+					sRecorders.add(recorder);
+				}
+			}
+		}
+		return recorder;
+	}
+
+	/** Failure counts and logging state for one callback. */
+	/*package*/ static final class Recorder {
+		private static final AtomicIntegerFieldUpdater<Recorder> CONSECUTIVE_FAILURES =
+				AtomicIntegerFieldUpdater.newUpdater(Recorder.class, "consecutiveFailures");
+
+		private final XC_MethodHook callback;
+		/** Xposed's own callbacks keep resources and package loading working, so they're never quarantined. */
+		private final boolean quarantinable;
+		private final AtomicLong failures = new AtomicLong();
+		/** Reset without locking when the callback returns normally. */
+		/*package*/ volatile int consecutiveFailures;
+		private volatile Throwable lastFailure;
+
+		// Guarded by this, but read without locking to skip repeated failures quickly.
+		private final Set<String> loggedFailures = new HashSet<>();
+		private volatile Class<?>[] loggedClasses = new Class<?>[0];
+		private volatile boolean loggedFailuresFull;
+		private volatile long lastLogTime;
+		private final AtomicInteger suppressed = new AtomicInteger();
+
+		private Recorder(XC_MethodHook callback) {
+			this.callback = callback;
+			this.quarantinable = callback.getClass().getClassLoader() != XposedBridge.class.getClassLoader();
+		}
+
+		/**
+		 * Records a failure and logs it, unless the same failure has been logged recently.
+		 *
+		 * <p>Failures are only counted if no log message is due, i.e. if an exception of the same
+		 * class has been logged less than {@link #SUMMARY_INTERVAL_MS} ago. Otherwise, the failure
+		 * is compared with the ones which have been logged before by its top stack frame.
+		 *
+		 * @return {@code true} if the callback has been quarantined because of this failure.
+		 */
+		/*package*/ boolean record(Member method, Throwable t, int quarantineThreshold) {
+			failures.incrementAndGet();
+			int consecutive = CONSECUTIVE_FAILURES.incrementAndGet(this);
+			lastFailure = t;
+
+			boolean quarantine = quarantinable && quarantineThreshold > 0 && consecutive >= quarantineThreshold
+					&& !callback.quarantined;
+			if (!quarantine && SystemClock.uptimeMillis() - lastLogTime < SUMMARY_INTERVAL_MS
+					&& (loggedFailuresFull || isLogged(t.getClass()))) {
+				suppressed.incrementAndGet();
+				return false;
+			}
+			return logAndQuarantine(method, t, consecutive, quarantine);
+		}
+
+		private boolean isLogged(Class<?> clazz) {
+			for (Class<?> loggedClass : loggedClasses) {
+				if (loggedClass == clazz)
+					return true;
+			}
+			return false;
+		}
+
+		private synchronized boolean logAndQuarantine(Member method, Throwable t, int consecutive, boolean quarantine) {
+			long now = SystemClock.uptimeMillis();
+			if (!loggedFailuresFull && loggedFailures.add(getFailureKey(t))) {
+				if (!isLogged(t.getClass())) {
+					Class<?>[] classes = Arrays.copyOf(loggedClasses, loggedClasses.length + 1);
+					classes[classes.length - 1] = t.getClass();
+					loggedClasses = classes;
+				}
+				loggedFailuresFull = loggedFailures.size() >= MAX_DISTINCT_FAILURES;
+				XposedBridge.log(t);
+				lastLogTime = now;
+			} else if (now - lastLogTime >= SUMMARY_INTERVAL_MS) {
+				XposedBridge.log("Callback " + callback + " for " + method + " failed "
+						+ (suppressed.getAndSet(0) + 1) + " more times, last time with " + t);
+				lastLogTime = now;
+			} else {
+				suppressed.incrementAndGet();
+			}
+
+			if (quarantine && !callback.quarantined) {
+				callback.quarantined = true;
+				XposedBridge.log("Callback " + callback + " has been quarantined after "
+						+ consecutive + " consecutive failures, last time in " + method);
+				return true;
+			}
+			return false;
+		}
+
+		/*package*/ synchronized void release() {
+			consecutiveFailures = 0;
+			callback.quarantined = false;
+		}
+
+		private static String getFailureKey(Throwable t) {
+			StackTraceElement[] trace = t.getStackTrace();
+			return (trace.length > 0) ? t.getClass().getName() + " at " + trace[0] : t.getClass().getName();
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package de.robv.android.xposed;
+
+import java.lang.reflect.Member;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size ring buffer with the most recent calls of hooked methods.
+ *
+ * <p>Calls are only recorded while this is enabled with {@link XposedBridge#setDispatchTraceEnabled}.
+ * Recording doesn't allocate any objects. Use {@link XposedBridge#getDispatchTrace} to decode the
+ * recorded calls, e.g. to find out which hooks were executed before an app became unresponsive.
+ */
+public final class DispatchTrace {
+	/** The number of calls which are kept in the buffer. */
+	/*package*/ static final int CAPACITY = 1024;
+
+	// Layout of a record in the buffer.
+	private static final int TAG = 0;
+	private static final int MEMBER = 1;
+	private static final int THREAD = 2;
+	private static final int START = 3;
+	private static final int END = 4;
+	private static final int CALLBACKS_RUN = 5;
+	private static final int FLAGS = 6;
+	private static final int RECORD_SIZE = 7;
+
+	private static final long FLAG_ORIGINAL_CALLED = 1L << 32;
+	private static final long FLAG_THREW = 1L << 33;
+
+	private final AtomicLongArray buffer = new AtomicLongArray(CAPACITY * RECORD_SIZE);
+	private final AtomicLong nextSequence = new AtomicLong();
+
+	/*package*/ DispatchTrace() {}
+
+	/**
+	 * Records a call of a hooked method.
+	 *
+	 * @param memberId The ID of the hooked method.
+	 * @param callbacksRun A bit mask with the positions of the callbacks which have been executed.
+	 * @param callbackCount The total number of callbacks of the method.
+	 * @param returnedEarly The position of the callback which has skipped the original method, or -1.
+	 */
+	/*package*/ void record(int memberId, long startNanos, long endNanos, long callbacksRun,
+			int callbackCount, int returnedEarly, boolean originalCalled, boolean threw) {
+		long sequence = nextSequence.getAndIncrement();
+		int base = (int) (sequence % CAPACITY) * RECORD_SIZE;
+
+		// Mark the record as incomplete while it's being written, so that readers can skip it.
+		buffer.set(base + TAG, -(sequence + 1));
+		buffer.set(base + MEMBER, memberId);
+		buffer.set(base + THREAD, Thread.currentThread().getId());
+		buffer.set(base + START, startNanos);
+		buffer.set(base + END, endNanos);
+		buffer.set(base + CALLBACKS_RUN, callbacksRun);
+		buffer.set(base + FLAGS, (callbackCount & 0xffffL) | (((returnedEarly + 1) & 0xffffL) << 16)
+				| (originalCalled ? FLAG_ORIGINAL_CALLED : 0) | (threw ? FLAG_THREW : 0));
+		buffer.set(base + TAG, sequence + 1);
+	}
+
+	/**
+	 * Decodes the records in the buffer, ordered from oldest to newest. Records which are
+	 * overwritten while they are read are left out.
+	 */
+	/*package*/ List<Record> snapshot(Map<Integer, Member> members) {
+		long end = nextSequence.get();
+		long start = Math.max(0, end - CAPACITY);
+		List<Record> records = new ArrayList<>((int) (end - start));
+		for (long sequence = start; sequence < end; sequence++) {
+			int base = (int) (sequence % CAPACITY) * RECORD_SIZE;
+			if (buffer.get(base + TAG) != sequence + 1)
+				continue;
+
+			int memberId = (int) buffer.get(base + MEMBER);
+			long threadId = buffer.get(base + THREAD);
+			long startNanos = buffer.get(base + START);
+			long endNanos = buffer.get(base + END);
+			long callbacksRun = buffer.get(base + CALLBACKS_RUN);
+			long flags = buffer.get(base + FLAGS);
+
+			if (buffer.get(base + TAG) != sequence + 1)
+				continue;
+
+			records.add(new Record(members.get(memberId), threadId, startNanos, endNanos, callbacksRun,
+					(int) (flags & 0xffff), (int) ((flags >> 16) & 0xffff) - 1,
+					(flags & FLAG_ORIGINAL_CALLED) != 0, (flags & FLAG_THREW) != 0));
+		}
+		return records;
+	}
+
+	/**
+	 * A call of a hooked method.
+	 */
+	public static final class Record {
+		private final Member method;
+		private final long threadId;
+		private final long startNanos;
+		private final long endNanos;
+		private final long callbacksRun;
+		private final int callbackCount;
+		private final int returnedEarly;
+		private final boolean originalCalled;
+		private final boolean threw;
+
+		private Record(Member method, long threadId, long startNanos, long endNanos, long callbacksRun,
+				int callbackCount, int returnedEarly, boolean originalCalled, boolean threw) {
+			this.method = method;
+			this.threadId = threadId;
+			this.startNanos = startNanos;
+			this.endNanos = endNanos;
+			this.callbacksRun = callbacksRun;
+			this.callbackCount = callbackCount;
+			this.returnedEarly = returnedEarly;
+			this.originalCalled = originalCalled;
+			this.threw = threw;
+		}
+
+		/** Returns the hooked method/constructor. */
+		public Member getMethod() {
+			return method;
+		}
+
+		/** Returns the ID of the thread which has called the method, see {@link Thread#getId}. */
+		public long getThreadId() {
+			return threadId;
+		}
+
+		/** Returns when the call has started, as returned by {@link System#nanoTime}. */
+		public long getStartNanos() {
+			return startNanos;
+		}
+
+		/** Returns when the call has finished, as returned by {@link System#nanoTime}. */
+		public long getEndNanos() {
+			return endNanos;
+		}
+
+		/** Returns the number of callbacks which the method had at the time of the call. */
+		public int getCallbackCount() {
+			return callbackCount;
+		}
+
+		/**
+		 * Returns whether the callback at the given position (ordered by priority) has been
+		 * executed. Only the first 64 callbacks are tracked.
+		 */
+		public boolean hasCallbackRun(int position) {
+			return position < 64 && (callbacksRun & (1L << position)) != 0;
+		}
+
+		/**
+		 * Returns the position of the callback which has set a result in
+		 * {@link XC_MethodHook#beforeHookedMethod}, or -1 if none of them did.
+		 */
+		public int getReturnedEarlyPosition() {
+			return returnedEarly;
+		}
+
+		/** Returns whether the original method has been called. */
+		public boolean hasCalledOriginal() {
+			return originalCalled;
+		}
+
+		/** Returns whether the call has ended with an exception. */
+		public boolean hasThrown() {
+			return threw;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(startNanos).append(" thread ").append(threadId).append(": ").append(method)
+					.append(" took ").append(endNanos - startNanos).append("ns, callbacks [");
+			for (int i = 0; i < callbackCount; i++)
+				sb.append(hasCallbackRun(i) ? (i == returnedEarly ? 'R' : 'x') : '-');
+			sb.append(']');
+			if (!originalCalled)
+				sb.append(", original skipped");
+			if (threw)
+				sb.append(", threw");
+			return sb.toString();
+		}
+	}
+}
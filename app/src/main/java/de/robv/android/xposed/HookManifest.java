@@ -0,0 +1,255 @@
+package de.robv.android.xposed;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Member;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.robv.android.xposed.callbacks.XC_InitPackageResources;
+import de.robv.android.xposed.callbacks.XC_LoadPackage;
+
+/**
+ * Hooks which a module declares in {@code assets/xposed_hooks}, next to {@code assets/xposed_init}.
+ *
+ * <p>The file is parsed once when the module is loaded. Each line contains one directive, lines
+ * starting with {@code #} are ignored:
+ * <pre>
+ * # Only call the module's handleLoadPackage() and handleInitPackageResources() for these packages.
+ * scope com.example.app com.example.other
+ *
+ * # hook &lt;package or *&gt; &lt;class&gt; &lt;method or &lt;init&gt;&gt; &lt;callback class&gt; [parameter types...]
+ * hook com.example.app com.example.app.MainActivity onCreate com.example.module.OnCreateHook android.os.Bundle
+ * </pre>
+ *
+ * <p>Hooks for {@code *} are installed in all packages in the scope. Packages which don't contain
+ * their target are skipped without logging an error.
+ *
+ * <p>The callback classes must extend {@link XC_MethodHook} and have a public constructor without
+ * parameters. One instance is created for each class. When a package is loaded, all of its hooks
+ * are resolved and installed at once, and modules aren't called at all for packages outside of
+ * their scope.
+ */
+/*package*/ final class HookManifest {
+	/*package*/ static final String ASSET_NAME = "assets/xposed_hooks";
+	private static final String TAG = XposedBridge.TAG;
+	private static final String CONSTRUCTOR_NAME = "<init>";
+	private static final String ANY_PACKAGE = "*";
+
+	private final String modulePath;
+	private final ClassLoader moduleClassLoader;
+	/** The packages which the module is restricted to, or {@code null}. */
+	private Set<String> scope = null;
+	private final Map<String, List<Entry>> hooksByPackage = new HashMap<>();
+	private final Map<String, XC_MethodHook> callbacks = new HashMap<>();
+
+	private HookManifest(String modulePath, ClassLoader moduleClassLoader) {
+		this.modulePath = modulePath;
+		this.moduleClassLoader = moduleClassLoader;
+	}
+
+	/*package*/ static HookManifest parse(InputStream is, String modulePath, ClassLoader moduleClassLoader) throws IOException {
+		HookManifest manifest = new HookManifest(modulePath, moduleClassLoader);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+		String line;
+		int lineNumber = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+
+			String[] parts = line.split("\\s+");
+			if (parts[0].equals("scope") && parts.length >= 2) {
+				if (manifest.scope == null)
+					manifest.scope = new HashSet<>();
+				manifest.scope.addAll(Arrays.asList(parts).subList(1, parts.length));
+			} else if (parts[0].equals("hook") && parts.length >= 5) {
+				Entry entry = new Entry(parts[2], parts[3], parts[4], Arrays.copyOfRange(parts, 5, parts.length));
+				List<Entry> entries = manifest.hooksByPackage.get(parts[1]);
+				if (entries == null) {
+					entries = new ArrayList<>();
+					manifest.hooksByPackage.put(parts[1], entries);
+				}
+				entries.add(entry);
+			} else {
+				Log.e(TAG, "  Invalid line " + lineNumber + " in " + ASSET_NAME + ": " + line);
+			}
+		}
+		return manifest;
+	}
+
+	/*package*/ boolean isInScope(String packageName) {
+		return scope == null || scope.contains(packageName);
+	}
+
+	/** Returns whether any hooks are declared. */
+	/*package*/ boolean hasHooks() {
+		return !hooksByPackage.isEmpty();
+	}
+
+	/**
+	 * Returns a callback which installs the declared hooks when a package in the scope is loaded.
+	 */
+	/*package*/ XC_LoadPackage createHookInstaller() {
+		return new XC_LoadPackage() {
+			@Override
+			public void handleLoadPackage(LoadPackageParam lpparam) throws Throwable {
+				if (isInScope(lpparam.packageName))
+					installHooks(lpparam.packageName, lpparam.classLoader);
+			}
+		};
+	}
+
+	/**
+	 * Wraps a callback of the module, so that it's only called for packages in the scope.
+	 */
+	/*package*/ XC_LoadPackage restrict(final XC_LoadPackage callback) {
+		if (scope == null)
+			return callback;
+
+		return new XC_LoadPackage(callback.priority) {
+			@Override
+			public void handleLoadPackage(LoadPackageParam lpparam) throws Throwable {
+				if (isInScope(lpparam.packageName))
+					callback.handleLoadPackage(lpparam);
+			}
+		};
+	}
+
+	/**
+	 * Wraps a callback of the module, so that it's only called for packages in the scope.
+	 */
+	/*package*/ XC_InitPackageResources restrict(final XC_InitPackageResources callback) {
+		if (scope == null)
+			return callback;
+
+		return new XC_InitPackageResources(callback.priority) {
+			@Override
+			public void handleInitPackageResources(InitPackageResourcesParam resparam) throws Throwable {
+				if (isInScope(resparam.packageName))
+					callback.handleInitPackageResources(resparam);
+			}
+		};
+	}
+
+	private void installHooks(String packageName, ClassLoader classLoader) {
+		List<Entry> entries = new ArrayList<>();
+		List<Entry> forPackage = hooksByPackage.get(packageName);
+		if (forPackage != null)
+			entries.addAll(forPackage);
+		int explicitCount = entries.size();
+		List<Entry> forAll = hooksByPackage.get(ANY_PACKAGE);
+		if (forAll != null)
+			entries.addAll(forAll);
+		if (entries.isEmpty())
+			return;
+
+		// Resolve all targets first, so that each class is looked up only once.
+		Map<String, Class<?>> classes = new HashMap<>();
+		Map<String, List<Member>> membersByCallback = new LinkedHashMap<>();
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			// Skip invalid entries here, so that they don't prevent the other hooks from being installed.
+			Member member = null;
+			try {
+				Class<?> clazz;
+				if (classes.containsKey(entry.className)) {
+					clazz = classes.get(entry.className);
+				} else {
+					clazz = XposedHelpers.findClassIfExists(entry.className, classLoader);
+					classes.put(entry.className, clazz);
+				}
+
+				if (clazz != null) {
+					if (entry.methodName.equals(CONSTRUCTOR_NAME))
+						member = XposedHelpers.findConstructorExactIfExists(clazz, (Object[]) entry.parameterTypes);
+					else
+						member = XposedHelpers.findMethodExactIfExists(clazz, entry.methodName, (Object[]) entry.parameterTypes);
+				}
+
+				if (member == null) {
+					// Hooks for all packages usually target classes which only some packages contain.
+					if (i < explicitCount)
+						XposedBridge.log("Cannot find " + entry + " in " + packageName + " for " + modulePath);
+					continue;
+				}
+				XposedBridge.checkHookable(member);
+			} catch (Throwable t) {
+				XposedBridge.log("Cannot hook " + entry + " in " + packageName + " for " + modulePath + ": " + t);
+				continue;
+			}
+
+			List<Member> members = membersByCallback.get(entry.callbackClassName);
+			if (members == null) {
+				members = new ArrayList<>();
+				membersByCallback.put(entry.callbackClassName, members);
+			}
+			members.add(member);
+		}
+
+		for (Map.Entry<String, List<Member>> hooks : membersByCallback.entrySet()) {
+			XC_MethodHook callback = getCallback(hooks.getKey());
+			if (callback == null)
+				continue;
+
+			try {
+				XposedBridge.hookMethods(hooks.getValue(), callback);
+			} catch (Throwable t) {
+				XposedBridge.log("Cannot install hooks with " + hooks.getKey() + " in " + packageName + " for " + modulePath);
+				XposedBridge.log(t);
+			}
+		}
+	}
+
+	private synchronized XC_MethodHook getCallback(String className) {
+		if (callbacks.containsKey(className))
+			return callbacks.get(className);
+
+		XC_MethodHook callback = null;
+		try {
+			callback = (XC_MethodHook) moduleClassLoader.loadClass(className).newInstance();
+		} catch (Throwable t) {
+			XposedBridge.log("Cannot create callback " + className + " for " + modulePath);
+			XposedBridge.log(t);
+		}
+		// Also remember failures, so that they're only logged once.
+		callbacks.put(className, callback);
+		return callback;
+	}
+
+	private static final class Entry {
+		final String className;
+		final String methodName;
+		final String callbackClassName;
+		final String[] parameterTypes;
+
+		Entry(String className, String methodName, String callbackClassName, String[] parameterTypes) {
+			this.className = className;
+			this.methodName = methodName;
+			this.callbackClassName = callbackClassName;
+			this.parameterTypes = parameterTypes;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(className).append('.').append(methodName).append('(');
+			for (int i = 0; i < parameterTypes.length; i++) {
+				if (i > 0)
+					sb.append(", ");
+				sb.append(parameterTypes[i]);
+			}
+			return sb.append(')').toString();
+		}
+	}
+}
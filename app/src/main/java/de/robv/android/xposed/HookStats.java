@@ -0,0 +1,437 @@
+package de.robv.android.xposed;
+
+import java.lang.reflect.Member;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics about the calls of a hooked method/constructor and its callbacks.
+ *
+ * <p>Statistics are only recorded while this is enabled with {@link XposedBridge#setHookStatsEnabled}.
+ * Use {@link XposedBridge#getHookStats} to get a snapshot of them.
+ */
+public final class HookStats {
+	private final Member method;
+	private final long invocations;
+	private final Timing beforeTime;
+	private final Timing originalTime;
+	private final Timing afterTime;
+	private final Timing totalTime;
+	private final Timing overheadTime;
+	private final Timing frameworkTime;
+	private final List<CallbackStats> callbackStats;
+
+	private HookStats(Member method, MemberRecorder recorder) {
+		this.method = method;
+		this.invocations = recorder.invocations.sum();
+		this.beforeTime = recorder.before.snapshot();
+		this.originalTime = recorder.original.snapshot();
+		this.afterTime = recorder.after.snapshot();
+		ProfileRecorder profile = recorder.profile;
+		this.totalTime = (profile != null) ? profile.total.snapshot() : Histogram.EMPTY;
+		this.overheadTime = (profile != null) ? profile.overhead.snapshot() : Histogram.EMPTY;
+		this.frameworkTime = (profile != null) ? profile.framework.snapshot() : Histogram.EMPTY;
+
+		List<CallbackStats> callbackStats = new ArrayList<>(recorder.callbacks.size());
+		for (Map.Entry<XC_MethodHook, CallbackRecorder> entry : recorder.callbacks.entrySet())
+			callbackStats.add(new CallbackStats(entry.getKey(), entry.getValue()));
+		this.callbackStats = Collections.unmodifiableList(callbackStats);
+	}
+
+	/** Returns the hooked method/constructor. */
+	public Member getMethod() {
+		return method;
+	}
+
+	/** Returns how often the hooked method has been called. */
+	public long getInvocations() {
+		return invocations;
+	}
+
+	/** Returns the time spent in all {@link XC_MethodHook#beforeHookedMethod} callbacks per call. */
+	public Timing getBeforeTime() {
+		return beforeTime;
+	}
+
+	/** Returns the time spent in the original method per call. Calls which skipped it aren't counted. */
+	public Timing getOriginalTime() {
+		return originalTime;
+	}
+
+	/** Returns the time spent in all {@link XC_MethodHook#afterHookedMethod} callbacks per call. */
+	public Timing getAfterTime() {
+		return afterTime;
+	}
+
+	/**
+	 * Returns the total time per call, from entering the hook until returning to the caller.
+	 * Only measured while profiling is enabled, see {@link XposedBridge#setHookProfilingEnabled}.
+	 */
+	public Timing getTotalTime() {
+		return totalTime;
+	}
+
+	/**
+	 * Returns the time per call which isn't spent in the original method, i.e. the time added by
+	 * the callbacks and by Xposed itself. Only measured while profiling is enabled.
+	 */
+	public Timing getOverheadTime() {
+		return overheadTime;
+	}
+
+	/**
+	 * Returns the time per call which is spent neither in the original method nor in callbacks,
+	 * e.g. for dispatching the call, setting up the parameters and iterating over the callbacks.
+	 * Only measured while profiling is enabled.
+	 */
+	public Timing getFrameworkTime() {
+		return frameworkTime;
+	}
+
+	/**
+	 * Returns the overhead in relation to the time spent in the original method, e.g. {@code 0.5}
+	 * if hooking made the calls 50% slower. Only calls which were profiled are taken into account.
+	 *
+	 * @return The ratio, 0 if nothing has been profiled, or {@link Double#POSITIVE_INFINITY} if
+	 *         the original method has never been called.
+	 */
+	public double getOverheadRatio() {
+		long overheadNanos = overheadTime.getTotalNanos();
+		long originalNanos = totalTime.getTotalNanos() - overheadNanos;
+		if (originalNanos <= 0)
+			return (overheadNanos > 0) ? Double.POSITIVE_INFINITY : 0;
+		return (double) overheadNanos / originalNanos;
+	}
+
+	/** Returns the statistics for the individual callbacks of this method. */
+	public List<CallbackStats> getCallbackStats() {
+		return callbackStats;
+	}
+
+	@Override
+	public String toString() {
+		String result = method + ": " + invocations + " calls, before " + beforeTime
+				+ ", original " + originalTime + ", after " + afterTime;
+		if (totalTime.getCount() != 0)
+			result += ", overhead " + overheadTime + " (" + Math.round(getOverheadRatio() * 100)
+					+ "% of original), framework " + frameworkTime;
+		return result;
+	}
+
+	/** Orders statistics by their overhead ratio, highest first. */
+	/*package*/ static final Comparator<HookStats> BY_OVERHEAD_RATIO = new Comparator<HookStats>() {
+		@Override
+		public int compare(HookStats lhs, HookStats rhs) {
+			return Double.compare(rhs.getOverheadRatio(), lhs.getOverheadRatio());
+		}
+	};
+
+	/**
+	 * Statistics about one callback of a hooked method/constructor.
+	 */
+	public static final class CallbackStats {
+		private final XC_MethodHook callback;
+		private final Timing beforeTime;
+		private final Timing afterTime;
+
+		private CallbackStats(XC_MethodHook callback, CallbackRecorder recorder) {
+			this.callback = callback;
+			this.beforeTime = recorder.before.snapshot();
+			this.afterTime = recorder.after.snapshot();
+		}
+
+		/** Returns the callback. */
+		public XC_MethodHook getCallback() {
+			return callback;
+		}
+
+		/** Returns the time spent in {@link XC_MethodHook#beforeHookedMethod}. */
+		public Timing getBeforeTime() {
+			return beforeTime;
+		}
+
+		/** Returns the time spent in {@link XC_MethodHook#afterHookedMethod}. */
+		public Timing getAfterTime() {
+			return afterTime;
+		}
+
+		@Override
+		public String toString() {
+			return callback + ": before " + beforeTime + ", after " + afterTime;
+		}
+	}
+
+	/**
+	 * A histogram of durations. Durations are sorted into buckets with exponentially growing size,
+	 * so percentiles are only approximations.
+	 */
+	public static final class Timing {
+		private final long count;
+		private final long totalNanos;
+		private final long[] buckets;
+
+		private Timing(long count, long totalNanos, long[] buckets) {
+			this.count = count;
+			this.totalNanos = totalNanos;
+			this.buckets = buckets;
+		}
+
+		/** Returns the number of measured durations. */
+		public long getCount() {
+			return count;
+		}
+
+		/** Returns the sum of all durations in nanoseconds. */
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+
+		/** Returns the average duration in nanoseconds, or 0 if nothing has been measured. */
+		public long getAverageNanos() {
+			return count != 0 ? totalNanos / count : 0;
+		}
+
+		/**
+		 * Returns an upper bound for the given percentile in nanoseconds, e.g. {@code 0.99} for
+		 * the 99th percentile. Returns 0 if nothing has been measured.
+		 */
+		public long getPercentileNanos(double percentile) {
+			if (count == 0)
+				return 0;
+
+			long rank = (long) Math.ceil(percentile * count);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank && buckets[i] != 0)
+					return Histogram.getUpperBound(i);
+			}
+			return Histogram.getUpperBound(buckets.length - 1);
+		}
+
+		/**
+		 * Returns the number of durations in each bucket. Bucket {@code i} contains durations
+		 * which are less than 2<sup>i</sup> nanoseconds, but not in a lower bucket.
+		 */
+		public long[] getBucketCounts() {
+			return buckets.clone();
+		}
+
+		@Override
+		public String toString() {
+			return count + "x avg " + getAverageNanos() + "ns, p50 <" + getPercentileNanos(0.5)
+					+ "ns, p99 <" + getPercentileNanos(0.99) + "ns";
+		}
+	}
+
+	/*package*/ static HookStats snapshot(Member method, MemberRecorder recorder) {
+		return new HookStats(method, recorder);
+	}
+
+	// Recording of statistics. Values start with a single stripe, which is split by thread when
+	// threads contend for it, up to one stripe per CPU (at most 8).
+	private static final int MAX_STRIPES;
+	static {
+		int stripes = 1;
+		int cpus = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+		while (stripes < cpus)
+			stripes <<= 1;
+		MAX_STRIPES = stripes;
+	}
+
+	/**
+	 * Minimum number of values per stripe. Values which are 64 bytes apart never share a cache
+	 * line, so threads updating different stripes don't contend.
+	 */
+	private static final int STRIPE_PADDING = 8;
+
+	// Time spent in original methods and callbacks by the current thread, see getProfiledTimes().
+	/*package*/ static final int PROFILED_ORIGINAL = 0;
+	/*package*/ static final int PROFILED_CALLBACKS = 1;
+	private static final ThreadLocal<long[]> sProfiledTimes = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[2];
+		}
+	};
+
+	/**
+	 * Returns the per-thread counters for the time spent in original methods and callbacks.
+	 * A profiled call remembers their values when it starts, uses the difference when it ends and
+	 * then restores them, so that enclosing calls don't count the same time twice.
+	 */
+	/*package*/ static long[] getProfiledTimes() {
+		return sProfiledTimes.get();
+	}
+
+	private static void addProfiledTime(int type, long nanos) {
+		if (XposedBridge.hookProfilingEnabled)
+			sProfiledTimes.get()[type] += nanos;
+	}
+
+	/** Recorder for a hooked method/constructor. */
+	/*package*/ static final class MemberRecorder {
+		/*package*/ final Counter invocations = new Counter();
+		/*package*/ final Histogram before = new Histogram();
+		/*package*/ final Histogram original = new Histogram();
+		/*package*/ final Histogram after = new Histogram();
+		// Only created once a profiled call has been recorded.
+		private volatile ProfileRecorder profile;
+		private final ConcurrentMap<XC_MethodHook, CallbackRecorder> callbacks = new ConcurrentHashMap<>();
+
+		/*package*/ void recordOriginal(long nanos) {
+			original.record(nanos);
+			addProfiledTime(PROFILED_ORIGINAL, nanos);
+		}
+
+		/*package*/ void recordBefore(XC_MethodHook callback, long nanos) {
+			getCallbackRecorder(callback).before.record(nanos);
+			addProfiledTime(PROFILED_CALLBACKS, nanos);
+		}
+
+		/*package*/ void recordAfter(XC_MethodHook callback, long nanos) {
+			getCallbackRecorder(callback).after.record(nanos);
+			addProfiledTime(PROFILED_CALLBACKS, nanos);
+		}
+
+		/**
+		 * Records a profiled call.
+		 *
+		 * @param totalNanos The time from entering the hook until returning.
+		 * @param originalNanos The part of it which was spent in the original method.
+		 * @param callbackNanos The part of it which was spent in callbacks.
+		 */
+		/*package*/ void recordProfiledCall(long totalNanos, long originalNanos, long callbackNanos) {
+			ProfileRecorder profile = this.profile;
+			if (profile == null) {
+				synchronized (this) {
+					profile = this.profile;
+					if (profile == null)
+						profile = this.profile = new ProfileRecorder();
+				}
+			}
+
+			profile.total.record(totalNanos);
+			profile.overhead.record(totalNanos - originalNanos);
+			profile.framework.record(totalNanos - originalNanos - callbackNanos);
+		}
+
+		/*package*/ CallbackRecorder getCallbackRecorder(XC_MethodHook callback) {
+			CallbackRecorder recorder = callbacks.get(callback);
+			if (recorder == null) {
+				recorder = new CallbackRecorder();
+				CallbackRecorder existing = callbacks.putIfAbsent(callback, recorder);
+				if (existing != null)
+					recorder = existing;
+			}
+			return recorder;
+		}
+	}
+
+	/** Recorder for the profiled calls of a hooked method/constructor. */
+	private static final class ProfileRecorder {
+		private final Histogram total = new Histogram();
+		private final Histogram overhead = new Histogram();
+		private final Histogram framework = new Histogram();
+	}
+
+	/** Recorder for one callback of a hooked method/constructor. */
+	/*package*/ static final class CallbackRecorder {
+		/*package*/ final Histogram before = new Histogram();
+		/*package*/ final Histogram after = new Histogram();
+	}
+
+	/**
+	 * Values which are striped by thread once threads contend for them. Stripes are only added,
+	 * never removed, so a value can be summed up at any time without locking.
+	 */
+	private static final class Stripes {
+		private final int width;
+		private volatile AtomicLongArray[] stripes;
+
+		private Stripes(int width) {
+			this.width = Math.max(width, STRIPE_PADDING);
+			this.stripes = new AtomicLongArray[] { new AtomicLongArray(this.width) };
+		}
+
+		private void add(int index, long delta) {
+			AtomicLongArray[] stripes = this.stripes;
+			AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+			long value = stripe.get(index);
+			if (!stripe.compareAndSet(index, value, value + delta)) {
+				stripe.addAndGet(index, delta);
+				grow(stripes);
+			}
+		}
+
+		/** Doubles the number of stripes, unless that has already happened or the limit is reached. */
+		private synchronized void grow(AtomicLongArray[] expected) {
+			if (stripes != expected || expected.length >= MAX_STRIPES)
+				return;
+
+			AtomicLongArray[] grown = Arrays.copyOf(expected, expected.length * 2);
+			for (int i = expected.length; i < grown.length; i++)
+				grown[i] = new AtomicLongArray(width);
+			stripes = grown;
+		}
+
+		private long sum(int index) {
+			long sum = 0;
+			for (AtomicLongArray stripe : stripes)
+				sum += stripe.get(index);
+			return sum;
+		}
+	}
+
+	/** A striped counter. */
+	/*package*/ static final class Counter {
+		private final Stripes values = new Stripes(1);
+
+		/*package*/ void increment() {
+			values.add(0, 1);
+		}
+
+		/*package*/ long sum() {
+			return values.sum(0);
+		}
+	}
+
+	/** A striped histogram with logarithmic buckets. */
+	/*package*/ static final class Histogram {
+		// Durations of 2^39 ns (about 9 minutes) and more all end up in the last bucket.
+		private static final int BUCKETS = 40;
+		/*package*/ static final Timing EMPTY = new Timing(0, 0, new long[BUCKETS]);
+
+		// Index 0 holds the total duration, the buckets follow it.
+		private final Stripes values = new Stripes(BUCKETS + 1);
+
+		/*package*/ void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			int bucket = Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1);
+			values.add(1 + bucket, 1);
+			values.add(0, nanos);
+		}
+
+		/*package*/ Timing snapshot() {
+			long[] sums = new long[BUCKETS];
+			long count = 0;
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				sums[bucket] = values.sum(1 + bucket);
+				count += sums[bucket];
+			}
+			return new Timing(count, values.sum(0), sums);
+		}
+
+		/*package*/ static long getUpperBound(int bucket) {
+			return (bucket == BUCKETS - 1) ? Long.MAX_VALUE : 1L << bucket;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package de.robv.android.xposed;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes messages for {@link XposedBridge#log} on a background thread, so that logging never
+ * blocks the caller. Consecutive identical messages are collapsed into one line. If more messages
+ * are queued than the writer can handle, new ones are dropped and the number of dropped messages
+ * is logged later.
+ *
+ * <p>The zygote must not start any threads, so messages are written directly in that process.
+ * In other processes, queued messages are written synchronously before the process dies because
+ * of an uncaught exception or {@link System#exit}, see {@link #flush}.
+ */
+/*package*/ final class LogWriter {
+	private static final String TAG = XposedBridge.TAG;
+	private static final int CAPACITY = 1024;
+
+	private static final ConcurrentLinkedQueue<Entry> sQueue = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger sSize = new AtomicInteger();
+	private static final AtomicInteger sDropped = new AtomicInteger();
+	private static volatile boolean sWriterSleeping = false;
+	private static volatile Thread sWriter;
+
+	// Collapsing of repeated messages, guarded by sWriteLock.
+	private static final Object sWriteLock = new Object();
+	private static String sLastText = null;
+	private static int sLastPriority = 0;
+	private static int sRepeated = 0;
+
+	/** The process in which messages must be written directly, usually the zygote. */
+	private static volatile int sSynchronousPid = -1;
+
+	private LogWriter() {}
+
+	/** Writes all messages from the calling process directly. */
+	/*package*/ static void setSynchronousForThisProcess() {
+		sSynchronousPid = Process.myPid();
+	}
+
+	/*package*/ static void log(int priority, String text, Throwable t) {
+		if (sSynchronousPid == Process.myPid()) {
+			Log.println(priority, TAG, (t != null) ? Log.getStackTraceString(t) : text);
+			return;
+		}
+
+		if (sSize.incrementAndGet() > CAPACITY) {
+			sSize.decrementAndGet();
+			sDropped.incrementAndGet();
+			return;
+		}
+
+		sQueue.offer(new Entry(priority, text, t));
+		Thread writer = sWriter;
+		if (writer == null)
+			writer = startWriter();
+		if (sWriterSleeping)
+			LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Writes all queued messages on the calling thread. Returns once the queue is empty, even if
+	 * the writer thread is busy with other messages at the same time.
+	 */
+	/*package*/ static void flush() {
+		writeQueued();
+	}
+
+	private static synchronized Thread startWriter() {
+		if (sWriter == null) {
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writeLoop();
+				}
+			}, "XposedLogWriter");
+			writer.setDaemon(true);
+			writer.start();
+			sWriter = writer;
+			installFlushOnExit();
+		}
+		return sWriter;
+	}
+
+	/** Makes sure that queued messages aren't lost when the process crashes or exits. */
+	private static void installFlushOnExit() {
+		final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+			@Override
+			public void uncaughtException(Thread thread, Throwable ex) {
+				flush();
+				if (previous != null)
+					previous.uncaughtException(thread, ex);
+			}
+		});
+
+		Runtime.getRuntime().addShutdownHook(new Thread("XposedLogFlush") {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	private static void writeLoop() {
+		for (;;) {
+			writeQueued();
+
+			// The flag must be set before checking the queue again, so that a producer which
+			// adds an entry afterwards is guaranteed to wake this thread up.
+			sWriterSleeping = true;
+			if (sQueue.isEmpty())
+				LockSupport.park(LogWriter.class);
+			sWriterSleeping = false;
+		}
+	}
+
+	/** Writes messages until the queue is empty. */
+	private static void writeQueued() {
+		synchronized (sWriteLock) {
+			Entry entry;
+			while ((entry = sQueue.poll()) != null) {
+				sSize.decrementAndGet();
+
+				int dropped = sDropped.getAndSet(0);
+				if (dropped > 0)
+					Log.w(TAG, dropped + " log messages have been dropped");
+
+				String text = (entry.throwable != null) ? Log.getStackTraceString(entry.throwable) : entry.text;
+				if (entry.priority == sLastPriority && text != null && text.equals(sLastText)) {
+					sRepeated++;
+					continue;
+				}
+
+				writeRepeated();
+				Log.println(entry.priority, TAG, String.valueOf(text));
+				sLastText = text;
+				sLastPriority = entry.priority;
+			}
+
+			writeRepeated();
+			sLastText = null;
+		}
+	}
+
+	private static void writeRepeated() {
+		if (sRepeated > 0) {
+			Log.println(sLastPriority, TAG, "(previous message repeated " + sRepeated + " times)");
+			sRepeated = 0;
+		}
+	}
+
+	private static final class Entry {
+		final int priority;
+		final String text;
+		final Throwable throwable;
+
+		Entry(int priority, String text, Throwable throwable) {
+			this.priority = priority;
+			this.text = text;
+			this.throwable = throwable;
+		}
+	}
+}
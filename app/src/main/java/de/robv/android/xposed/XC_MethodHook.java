@@ -1,6 +1,12 @@
 package de.robv.android.xposed;
 
+import android.app.AndroidAppHelper;
+
 import java.lang.reflect.Member;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.robv.android.xposed.callbacks.IXUnhook;
 import de.robv.android.xposed.callbacks.XCallback;
@@ -60,6 +66,190 @@ public abstract class XC_MethodHook extends XCallback {
 	 */
 	protected void afterHookedMethod(MethodHookParam param) throws Throwable {}
 
+	/*package*/ Guard guard;
+
+	/**
+	 * Sets a condition which is checked before this callback is executed. If the guard rejects a
+	 * call, neither {@link #beforeHookedMethod} nor {@link #afterHookedMethod} are called for it.
+	 * If all callbacks of a method reject a call, the original method is called directly, which
+	 * is almost as fast as if it wasn't hooked.
+	 *
+	 * <p>The guard must be set before the callback is hooked.
+	 *
+	 * @param guard The guard, or {@code null} to execute the callback for all calls.
+	 * @return This callback, so that the call can be chained to the constructor.
+	 */
+	public XC_MethodHook setGuard(Guard guard) {
+		this.guard = guard;
+		return this;
+	}
+
+	/**
+	 * Returns the guard which has been set with {@link #setGuard}, or {@code null}.
+	 */
+	public Guard getGuard() {
+		return guard;
+	}
+
+	/** Counts how often this callback is running in each thread, {@code null} if it's reentrant. */
+	/*package*/ ThreadLocal<int[]> activeDepth;
+
+	/**
+	 * Sets whether this callback may be executed again while it is already running on the current
+	 * thread, e.g. because it calls the hooked method itself. For non-reentrant callbacks, such
+	 * nested calls are passed on without executing this callback. This replaces the common pattern
+	 * of using {@link XposedHelpers#incrementMethodDepth} for recursion protection, but is faster.
+	 *
+	 * <p>This must be set before the callback is hooked.
+	 *
+	 * @param reentrant {@code false} to skip nested calls, {@code true} to execute the callback
+	 *                  for them (the default).
+	 * @return This callback, so that the call can be chained to the constructor.
+	 */
+	public XC_MethodHook setReentrant(boolean reentrant) {
+		if (reentrant) {
+			activeDepth = null;
+		} else if (activeDepth == null) {
+			activeDepth = new ThreadLocal<int[]>() {
+				@Override
+				protected int[] initialValue() {
+					return new int[1];
+				}
+			};
+		}
+		return this;
+	}
+
+	/**
+	 * Returns whether this callback is reentrant, see {@link #setReentrant}.
+	 */
+	public boolean isReentrant() {
+		return activeDepth == null;
+	}
+
+	/*package*/ boolean recycleParams;
+
+	/**
+	 * Allows the {@link MethodHookParam} objects passed to this callback to be reused for later
+	 * calls. If all callbacks of a method allow it, each thread keeps a small pool of parameter
+	 * objects for it, which are reset once all callbacks for a call have been executed. This
+	 * avoids an allocation for each call of the hooked method.
+	 *
+	 * <p>Callbacks which enable this must not access the parameter object after they have
+	 * returned (e.g. by passing it to another thread), unless they call
+	 * {@link MethodHookParam#retain}. This must be set before the callback is hooked.
+	 *
+	 * @param recycle {@code true} to allow reusing parameter objects, {@code false} to get a new
+	 *                one for each call (the default).
+	 * @return This callback, so that the call can be chained to the constructor.
+	 */
+	public XC_MethodHook setParamRecycling(boolean recycle) {
+		this.recycleParams = recycle;
+		return this;
+	}
+
+	/**
+	 * Returns whether this callback allows reusing parameter objects, see {@link #setParamRecycling}.
+	 */
+	public boolean isParamRecyclingEnabled() {
+		return recycleParams;
+	}
+
+	/*package*/ String[] packageScope;
+	/*package*/ String[] processScope;
+
+	/**
+	 * Restricts this callback to applications with one of the given package names. In other
+	 * processes, the callback is removed once the application has been bound, so it doesn't
+	 * cause any overhead there. This is mainly useful for callbacks which are registered in
+	 * {@link IXposedHookZygoteInit#initZygote} and therefore inherited by all processes.
+	 *
+	 * <p>The package name is the one of the application which the process has been started for,
+	 * see {@link de.robv.android.xposed.callbacks.XC_LoadPackage.LoadPackageParam#packageName}.
+	 * The scope must be set before the callback is hooked.
+	 *
+	 * @param packageNames The package names, or {@code null} to execute the callback in all packages.
+	 * @return This callback, so that the call can be chained to the constructor.
+	 * @see #setProcessScope
+	 */
+	public XC_MethodHook setPackageScope(String... packageNames) {
+		this.packageScope = packageNames;
+		return this;
+	}
+
+	/**
+	 * Restricts this callback to processes with one of the given names. Works like
+	 * {@link #setPackageScope}. If both scopes are set, the callback is only executed in processes
+	 * which match both of them. The system server uses the package name {@code android} and the
+	 * process name {@code system_server}.
+	 *
+	 * @param processNames The process names, or {@code null} to execute the callback in all processes.
+	 * @return This callback, so that the call can be chained to the constructor.
+	 */
+	public XC_MethodHook setProcessScope(String... processNames) {
+		this.processScope = processNames;
+		return this;
+	}
+
+	/*package*/ boolean isInScope(String packageName, String processName) {
+		return (packageScope == null || Arrays.asList(packageScope).contains(packageName))
+				&& (processScope == null || Arrays.asList(processScope).contains(processName));
+	}
+
+	/*package*/ volatile boolean quarantined;
+	/*package*/ volatile CallbackFailures.Recorder failures;
+
+	/**
+	 * Returns whether this callback has been quarantined because it failed too often.
+	 * Quarantined callbacks aren't called anymore.
+	 *
+	 * @see XposedBridge#setQuarantineThreshold
+	 */
+	public boolean isQuarantined() {
+		return quarantined;
+	}
+
+	/*package*/ static final int PHASE_BEFORE = 1;
+	/*package*/ static final int PHASE_AFTER = 2;
+	private static final HashMap<Class<?>, Integer> sOverriddenPhases = new HashMap<>();
+
+	/**
+	 * Returns which of {@link #beforeHookedMethod} and {@link #afterHookedMethod} are overridden
+	 * by this callback, as a combination of {@link #PHASE_BEFORE} and {@link #PHASE_AFTER}.
+	 * The dispatcher doesn't call methods which only have the default (empty) implementation.
+	 */
+	/*package*/ final int getOverriddenPhases() {
+		Class<?> clazz = getClass();
+		synchronized (sOverriddenPhases) {
+			Integer phases = sOverriddenPhases.get(clazz);
+			if (phases == null) {
+				// XC_MethodReplacement uses beforeHookedMethod() and has a final, empty afterHookedMethod().
+				// XC_MethodObserver is the other way round.
+				Class<?> beforeBase = (this instanceof XC_MethodObserver) ? XC_MethodObserver.class : XC_MethodHook.class;
+				Class<?> afterBase = (this instanceof XC_MethodReplacement) ? XC_MethodReplacement.class : XC_MethodHook.class;
+				phases = (isOverridden(clazz, "beforeHookedMethod", beforeBase) ? PHASE_BEFORE : 0)
+						| (isOverridden(clazz, "afterHookedMethod", afterBase) ? PHASE_AFTER : 0);
+				sOverriddenPhases.put(clazz, phases);
+			}
+			return phases;
+		}
+	}
+
+	private static boolean isOverridden(Class<?> clazz, String methodName, Class<?> baseClass) {
+		try {
+			for (; clazz != baseClass; clazz = clazz.getSuperclass()) {
+				try {
+					clazz.getDeclaredMethod(methodName, MethodHookParam.class);
+					return true;
+				} catch (NoSuchMethodException ignored) {}
+			}
+			return false;
+		} catch (SecurityException | LinkageError e) {
+			// In doubt, assume that the method is overridden.
+			return true;
+		}
+	}
+
 	/**
 	 * Wraps information about the method call and allows to influence it.
 	 */
@@ -126,6 +316,215 @@ public abstract class XC_MethodHook extends XCallback {
 				throw throwable;
 			return result;
 		}
+
+		/**
+		 * Keeps this object valid after the hooked method has returned.
+		 *
+		 * <p>If all callbacks of the method allow it (see {@link XC_MethodHook#setParamRecycling}),
+		 * this object is reset and reused for later calls once all callbacks have been executed.
+		 * Callbacks which need to access it afterwards, e.g. from another thread, must call this
+		 * method. Otherwise, calling it has no effect.
+		 */
+		public void retain() {
+			retained = true;
+		}
+
+		private ParamPool pool;
+		private boolean retained = false;
+
+		/**
+		 * Returns an unused parameter object from the pool of the current thread.
+		 * Must be followed by a call to {@link #recycle} once the hooked method has returned.
+		 */
+		/*package*/ static MethodHookParam obtain() {
+			ParamPool pool = sParamPool.get();
+			MethodHookParam[] params = pool.params;
+			int depth = pool.depth;
+			if (depth == params.length) {
+				params = pool.params = Arrays.copyOf(params, depth * 2);
+			}
+
+			MethodHookParam param = params[depth];
+			if (param == null || param.retained) {
+				param = params[depth] = new MethodHookParam();
+				param.pool = pool;
+			}
+			pool.depth = depth + 1;
+			return param;
+		}
+
+		/** Returns this object to the pool it was obtained from, unless it has been retained. */
+		/*package*/ void recycle() {
+			pool.depth--;
+			if (retained)
+				return;
+
+			method = null;
+			thisObject = null;
+			args = null;
+			result = null;
+			throwable = null;
+			returnEarly = false;
+			clearExtras();
+		}
+
+		private static final class ParamPool {
+			// One entry per nesting level of hooked calls on this thread.
+			private MethodHookParam[] params = new MethodHookParam[4];
+			private int depth = 0;
+		}
+
+		private static final ThreadLocal<ParamPool> sParamPool = new ThreadLocal<ParamPool>() {
+			@Override
+			protected ParamPool initialValue() {
+				return new ParamPool();
+			}
+		};
+	}
+
+	/**
+	 * A condition which decides whether a callback should be executed, see {@link #setGuard}.
+	 *
+	 * <p>Guards are checked for every call of the hooked method, before any
+	 * {@link MethodHookParam} is created. Therefore, they should be fast and must not modify
+	 * anything, including the arguments.
+	 */
+	public static abstract class Guard {
+		/**
+		 * Returns whether the callback should be executed for a call of the hooked method.
+		 *
+		 * @param method The hooked method/constructor.
+		 * @param thisObject The {@code this} reference for an instance method, or {@code null}.
+		 * @param args Arguments to the method call.
+		 * @return {@code true} to execute the callback, {@code false} to skip it.
+		 * @throws Throwable Everything the guard throws is caught and counted as a failure of the
+		 *                   callback, which is skipped in this case.
+		 *                   See {@link XposedBridge#setQuarantineThreshold}.
+		 */
+		public abstract boolean accept(Member method, Object thisObject, Object[] args) throws Throwable;
+
+		/**
+		 * Creates a guard which accepts calls for which {@code thisObject} is an instance of the
+		 * given class. Calls of static methods are rejected.
+		 */
+		public static Guard thisInstanceOf(final Class<?> clazz) {
+			return new Guard() {
+				@Override
+				public boolean accept(Member method, Object thisObject, Object[] args) {
+					return clazz.isInstance(thisObject);
+				}
+			};
+		}
+
+		/**
+		 * Creates a guard which accepts calls for which the argument at the given index is an
+		 * instance of the given class.
+		 */
+		public static Guard argInstanceOf(final int index, final Class<?> clazz) {
+			return new Guard() {
+				@Override
+				public boolean accept(Member method, Object thisObject, Object[] args) {
+					return clazz.isInstance(args[index]);
+				}
+			};
+		}
+
+		/**
+		 * Creates a guard which accepts calls for which the argument at the given index is equal
+		 * to the given value.
+		 */
+		public static Guard argEquals(final int index, final Object value) {
+			return new Guard() {
+				@Override
+				public boolean accept(Member method, Object thisObject, Object[] args) {
+					return (value == null) ? args[index] == null : value.equals(args[index]);
+				}
+			};
+		}
+
+		/**
+		 * Creates a guard which accepts calls in the process with the given name.
+		 *
+		 * @see AndroidAppHelper#currentProcessName
+		 */
+		public static Guard inProcess(final String processName) {
+			return new Guard() {
+				@Override
+				public boolean accept(Member method, Object thisObject, Object[] args) {
+					return processName.equals(AndroidAppHelper.currentProcessName());
+				}
+			};
+		}
+
+		/**
+		 * Creates a guard which accepts one in {@code n} calls, counted separately for each thread.
+		 * The first call on each thread is accepted.
+		 *
+		 * <p>This is useful for callbacks which collect statistics and don't need to see every call.
+		 * Calls which aren't sampled don't have any callback overhead if no other callbacks need them.
+		 * To combine it with other conditions, pass it as last guard to {@link #allOf}, so that only
+		 * calls which match these conditions are counted.
+		 */
+		public static Guard sampleOneIn(final int n) {
+			if (n < 1)
+				throw new IllegalArgumentException("Invalid sampling rate " + n);
+
+			return new Guard() {
+				private final ThreadLocal<int[]> countdown = new ThreadLocal<int[]>() {
+					@Override
+					protected int[] initialValue() {
+						return new int[1];
+					}
+				};
+
+				@Override
+				public boolean accept(Member method, Object thisObject, Object[] args) {
+					int[] remaining = countdown.get();
+					if (remaining[0] == 0) {
+						remaining[0] = n - 1;
+						return true;
+					}
+					remaining[0]--;
+					return false;
+				}
+			};
+		}
+
+		/**
+		 * Creates a guard which accepts at most one call per interval, across all threads.
+		 * The first call is accepted.
+		 *
+		 * @see #sampleOneIn
+		 */
+		public static Guard sampleInterval(long intervalMillis) {
+			final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+			return new Guard() {
+				private final AtomicLong lastSample = new AtomicLong(System.nanoTime() - intervalNanos);
+
+				@Override
+				public boolean accept(Member method, Object thisObject, Object[] args) {
+					long last = lastSample.get();
+					long now = System.nanoTime();
+					return now - last >= intervalNanos && lastSample.compareAndSet(last, now);
+				}
+			};
+		}
+
+		/**
+		 * Creates a guard which accepts calls that are accepted by all of the given guards.
+		 */
+		public static Guard allOf(final Guard... guards) {
+			return new Guard() {
+				@Override
+				public boolean accept(Member method, Object thisObject, Object[] args) throws Throwable {
+					for (Guard guard : guards) {
+						if (!guard.accept(method, thisObject, args))
+							return false;
+					}
+					return true;
+				}
+			};
+		}
 	}
 
 	/**
@@ -156,5 +555,23 @@ public abstract class XC_MethodHook extends XCallback {
 			XposedBridge.unhookMethod(hookMethod, XC_MethodHook.this);
 		}
 
+		/**
+		 * Pauses or resumes this callback for the hooked method. While paused, the callback isn't
+		 * called, but stays registered. This is much cheaper than unhooking and hooking it again.
+		 *
+		 * @param paused {@code true} to pause the callback, {@code false} to resume it.
+		 * @see XposedBridge#setMethodPaused
+		 */
+		public void setPaused(boolean paused) {
+			XposedBridge.setCallbackPaused(hookMethod, XC_MethodHook.this, paused);
+		}
+
+		/**
+		 * Returns whether this callback has been paused with {@link #setPaused}.
+		 */
+		public boolean isPaused() {
+			return XposedBridge.isCallbackPaused(hookMethod, XC_MethodHook.this);
+		}
+
 	}
 }
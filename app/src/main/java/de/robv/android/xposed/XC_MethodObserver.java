@@ -0,0 +1,228 @@
+package de.robv.android.xposed;
+
+import android.os.Process;
+
+import java.lang.reflect.Member;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.robv.android.xposed.callbacks.XCallback;
+
+/**
+ * A special case of {@link XC_MethodHook} which only observes calls of the hooked method.
+ *
+ * <p>After the method has been called, the receiver, arguments, result and exception are captured
+ * and queued. They are passed to {@link #observe} in batches on a background thread, so the cost
+ * of the observer doesn't add to the latency of the hooked method. Observers can't modify the
+ * arguments or the result.
+ *
+ * <p>If calls are recorded faster than they can be processed, the queue fills up and further
+ * calls are handled according to the {@link DropPolicy} of the observer.
+ *
+ * <p>The zygote must not start any threads, so calls in the zygote process are passed to
+ * {@link #observe} directly.
+ */
+public abstract class XC_MethodObserver extends XC_MethodHook {
+	/** The default capacity of the queue. */
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	private static final int MAX_BATCH_SIZE = 64;
+
+	/**
+	 * Defines what happens to a call which is recorded while the queue of the observer is full.
+	 */
+	public enum DropPolicy {
+		/** Discard the newly recorded call. */
+		DISCARD_NEWEST,
+		/** Discard the oldest call in the queue to make room for the new one. */
+		DISCARD_OLDEST,
+		/**
+		 * Pass the queued calls and the new one to {@link #observe} directly in the thread that
+		 * called the hooked method. The calls are still observed in order and never concurrently,
+		 * but the hooked method has to wait for the observer and for any batch which is being
+		 * observed at that time.
+		 */
+		CALLER_RUNS,
+	}
+
+	private final BlockingQueue<Observation> queue;
+	private final DropPolicy dropPolicy;
+	private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+	private final AtomicLong droppedCount = new AtomicLong(0);
+	/** Held while calls are taken from the queue and observed, so that they stay in order. */
+	private final Object observeLock = new Object();
+
+	/**
+	 * Creates a new observer with default priority, queue capacity and
+	 * {@link DropPolicy#DISCARD_NEWEST}.
+	 */
+	public XC_MethodObserver() {
+		this(PRIORITY_DEFAULT, DEFAULT_QUEUE_CAPACITY, DropPolicy.DISCARD_NEWEST);
+	}
+
+	/**
+	 * Creates a new observer with a specific priority, queue capacity and drop policy.
+	 *
+	 * @param priority See {@link XCallback#priority}.
+	 * @param queueCapacity The maximum number of calls which are waiting to be observed.
+	 * @param dropPolicy What to do with calls while the queue is full.
+	 */
+	public XC_MethodObserver(int priority, int queueCapacity, DropPolicy dropPolicy) {
+		super(priority);
+		if (dropPolicy == null)
+			throw new NullPointerException("dropPolicy");
+		this.queue = new ArrayBlockingQueue<>(queueCapacity);
+		this.dropPolicy = dropPolicy;
+	}
+
+	/**
+	 * Called with calls of the hooked method, in the order in which they have finished. This is
+	 * usually done on a background thread, except in the zygote and for {@link DropPolicy#CALLER_RUNS}.
+	 * It is never called concurrently for the same observer.
+	 *
+	 * @param calls The recorded calls. The list must not be used after this method has returned.
+	 * @throws Throwable Everything the callback throws is caught and logged.
+	 */
+	protected abstract void observe(List<Observation> calls) throws Throwable;
+
+	/**
+	 * Returns the number of calls which have been discarded because the queue was full.
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/** @hide */
+	@Override
+	protected final void beforeHookedMethod(MethodHookParam param) throws Throwable {}
+
+	/** @hide */
+	@Override
+	protected final void afterHookedMethod(MethodHookParam param) throws Throwable {
+		Observation call = new Observation(param.method, param.thisObject, param.args,
+				param.getResult(), param.getThrowable());
+
+		if (XposedBridge.isZygoteProcess()) {
+			observeNow(call);
+			return;
+		}
+
+		if (!queue.offer(call)) {
+			switch (dropPolicy) {
+				case DISCARD_NEWEST:
+					droppedCount.incrementAndGet();
+					return;
+
+				case DISCARD_OLDEST:
+					do {
+						if (queue.poll() != null)
+							droppedCount.incrementAndGet();
+					} while (!queue.offer(call));
+					break;
+
+				case CALLER_RUNS:
+					observeNow(call);
+					return;
+			}
+		}
+
+		if (drainScheduled.compareAndSet(false, true))
+			getExecutor().execute(mDrainTask);
+	}
+
+	/** Observes the queued calls and the given one in the current thread. */
+	private void observeNow(Observation call) {
+		synchronized (observeLock) {
+			List<Observation> calls = new ArrayList<>(queue.size() + 1);
+			queue.drainTo(calls);
+			calls.add(call);
+			observeSafely(calls);
+		}
+	}
+
+	private void observeSafely(List<Observation> calls) {
+		try {
+			observe(calls);
+		} catch (Throwable t) {
+			XposedBridge.log(t);
+		}
+	}
+
+	private final Runnable mDrainTask = new Runnable() {
+		private final List<Observation> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+		@Override
+		public void run() {
+			synchronized (observeLock) {
+				queue.drainTo(batch, MAX_BATCH_SIZE);
+				if (!batch.isEmpty()) {
+					observeSafely(batch);
+					batch.clear();
+				}
+			}
+
+			// Give other observers a chance before processing the next batch.
+			drainScheduled.set(false);
+			if (!queue.isEmpty() && drainScheduled.compareAndSet(false, true))
+				getExecutor().execute(this);
+		}
+	};
+
+	private static Executor sExecutor;
+	private static int sExecutorPid;
+
+	/**
+	 * Returns the executor for the current process. Processes forked from the zygote don't have
+	 * its threads, so an executor is only used in the process which has created it.
+	 */
+	private static synchronized Executor getExecutor() {
+		int pid = Process.myPid();
+		if (sExecutor == null || sExecutorPid != pid) {
+			sExecutorPid = pid;
+			sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "XposedMethodObserver");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sExecutor;
+	}
+
+	/**
+	 * Information about a finished call of the hooked method.
+	 */
+	public static final class Observation {
+		/** The hooked method/constructor. */
+		public final Member method;
+
+		/** The {@code this} reference for an instance method, or {@code null} for static methods. */
+		public final Object thisObject;
+
+		/** Arguments to the method call, as they were after the call. */
+		public final Object[] args;
+
+		/** The result of the method call, or {@code null} if it has thrown an exception. */
+		public final Object result;
+
+		/** The {@link Throwable} thrown by the method, or {@code null}. */
+		public final Throwable throwable;
+
+		private Observation(Member method, Object thisObject, Object[] args, Object result, Throwable throwable) {
+			this.method = method;
+			this.thisObject = thisObject;
+			this.args = args;
+			this.result = result;
+			this.throwable = throwable;
+		}
+	}
+}
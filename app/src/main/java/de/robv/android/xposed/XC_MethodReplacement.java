@@ -53,12 +53,7 @@ public abstract class XC_MethodReplacement extends XC_MethodHook {
 	/**
 	 * Predefined callback that skips the method without replacements.
 	 */
-	public static final XC_MethodReplacement DO_NOTHING = new XC_MethodReplacement(PRIORITY_HIGHEST*2) {
-		@Override
-		protected Object replaceHookedMethod(MethodHookParam param) throws Throwable {
-			return null;
-		}
-	};
+	public static final XC_MethodReplacement DO_NOTHING = new ReturnConstant(PRIORITY_HIGHEST*2, null);
 
 	/**
 	 * Creates a callback which always returns a specific value.
@@ -76,12 +71,25 @@ public abstract class XC_MethodReplacement extends XC_MethodHook {
 	 * @param result The value that should be returned to callers of the hooked method.
 	 */
 	public static XC_MethodReplacement returnConstant(int priority, final Object result) {
-		return new XC_MethodReplacement(priority) {
-			@Override
-			protected Object replaceHookedMethod(MethodHookParam param) throws Throwable {
-				return result;
-			}
-		};
+		return new ReturnConstant(priority, result);
+	}
+
+	/**
+	 * A replacement which always returns the same value. If it's the only callback for a method,
+	 * Xposed returns the value directly without creating a {@link MethodHookParam}.
+	 */
+	/*package*/ static final class ReturnConstant extends XC_MethodReplacement {
+		/*package*/ final Object result;
+
+		private ReturnConstant(int priority, Object result) {
+			super(priority);
+			this.result = result;
+		}
+
+		@Override
+		protected Object replaceHookedMethod(MethodHookParam param) throws Throwable {
+			return result;
+		}
 	}
 
 }
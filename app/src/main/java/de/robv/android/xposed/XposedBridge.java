@@ -3,31 +3,42 @@ package de.robv.android.xposed;
 import android.annotation.SuppressLint;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
+import android.os.Process;
 import android.util.Log;
 
 import com.android.internal.os.RuntimeInit;
 import com.android.internal.os.ZygoteInit;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import dalvik.system.PathClassLoader;
 import de.robv.android.xposed.XC_MethodHook.MethodHookParam;
 import de.robv.android.xposed.callbacks.XC_InitPackageResources;
 import de.robv.android.xposed.callbacks.XC_LoadPackage;
 
-import static de.robv.android.xposed.XposedHelpers.getIntField;
+import static de.robv.android.xposed.XposedHelpers.findField;
 import static de.robv.android.xposed.XposedHelpers.setObjectField;
 
 /**
@@ -52,12 +63,34 @@ public final class XposedBridge {
 	public static int XPOSED_BRIDGE_VERSION;
 
 	/*package*/ static boolean isZygote = true;
+	/** The ID of the zygote process, or -1 if Xposed hasn't been loaded into the zygote. */
+	private static int sZygotePid = -1;
 
 	private static int runtime = 0;
 	private static final int RUNTIME_DALVIK = 1;
 	private static final int RUNTIME_ART = 2;
 
 	/*package*/ static boolean disableHooks = false;
+	private static volatile boolean hookStatsEnabled = false;
+	/*package*/ static volatile boolean hookProfilingEnabled = false;
+	private static volatile int quarantineThreshold = 100;
+	private static volatile DispatchTrace sDispatchTrace = null;
+	private static boolean sTraceCrashHandlerInstalled = false;
+	private static final AtomicInteger sNextMemberId = new AtomicInteger();
+
+	/** The number of open {@link SuppressionScope}s in all threads. */
+	private static final AtomicInteger sOpenSuppressionScopes = new AtomicInteger();
+	private static final ThreadLocal<int[]> sSuppressionDepth = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	// The application which the process has been started for, see XC_MethodHook.setPackageScope().
+	private static volatile boolean sScopeKnown = false;
+	private static String sScopePackageName;
+	private static String sScopeProcessName;
 
 	// This field is set "magically" on MIUI.
 	/*package*/ static long BOOT_START_TIME;
@@ -65,7 +98,10 @@ public final class XposedBridge {
 	private static final Object[] EMPTY_ARRAY = new Object[0];
 
 	// built-in handlers
-	private static final Map<Member, CopyOnWriteSortedSet<XC_MethodHook>> sHookedMethodCallbacks = new HashMap<>();
+	private static final ConcurrentMap<Member, AdditionalHookInfo> sHookedMethodCallbacks = new ConcurrentHashMap<>();
+	private static final Object sHookInstallLock = new Object();
+	private static Field sMethodSlotField;
+	private static Field sConstructorSlotField;
 	/*package*/ static final CopyOnWriteSortedSet<XC_LoadPackage> sLoadedPackageCallbacks = new CopyOnWriteSortedSet<>();
 	/*package*/ static final CopyOnWriteSortedSet<XC_InitPackageResources> sInitPackageResourcesCallbacks = new CopyOnWriteSortedSet<>();
 
@@ -77,6 +113,12 @@ public final class XposedBridge {
 	 */
 	@SuppressWarnings("deprecation")
 	protected static void main(String[] args) {
+		// The zygote can't fork while other threads exist, so this must happen before anything is logged.
+		if (isZygote) {
+			sZygotePid = Process.myPid();
+			LogWriter.setSynchronousForThisProcess();
+		}
+
 		// Initialize the Xposed framework and modules
 		try {
 			if (!hadInitErrors()) {
@@ -106,10 +148,23 @@ public final class XposedBridge {
 		if (isZygote) {
 			ZygoteInit.main(args);
 		} else {
-			RuntimeInit.main(args);
+			try {
+				RuntimeInit.main(args);
+			} finally {
+				// The process may exit natively afterwards, without running the shutdown hooks.
+				LogWriter.flush();
+			}
 		}
 	}
 
+	/**
+	 * Returns whether this is the zygote process. Unlike {@link #isZygote}, this is {@code false}
+	 * in the processes forked from it. The zygote must not start any threads.
+	 */
+	/*package*/ static boolean isZygoteProcess() {
+		return sZygotePid == Process.myPid();
+	}
+
 	/** @hide */
 	protected static final class ToolEntryPoint {
 		protected static void main(String[] args) {
@@ -167,10 +222,13 @@ public final class XposedBridge {
 	 * <p class="warning"><b>DON'T FLOOD THE LOG!!!</b> This is only meant for error logging.
 	 * If you want to write information/debug messages, use logcat.
 	 *
+	 * <p>The message is written on a background thread, so this method never blocks. Repetitions
+	 * of the same message are collapsed into one line.
+	 *
 	 * @param text The log message.
 	 */
-	public synchronized static void log(String text) {
-		Log.i(TAG, text);
+	public static void log(String text) {
+		LogWriter.log(Log.INFO, text, null);
 	}
 
 	/**
@@ -179,16 +237,201 @@ public final class XposedBridge {
 	 * <p class="warning"><b>DON'T FLOOD THE LOG!!!</b> This is only meant for error logging.
 	 * If you want to write information/debug messages, use logcat.
 	 *
+	 * <p>The message is written on a background thread, so this method never blocks. Repetitions
+	 * of the same message are collapsed into one line.
+	 *
 	 * @param t The Throwable object for the stack trace.
 	 */
-	public synchronized static void log(Throwable t) {
-		Log.e(TAG, Log.getStackTraceString(t));
+	public static void log(Throwable t) {
+		LogWriter.log(Log.ERROR, null, t);
+	}
+
+	/**
+	 * Enables or disables the collection of statistics for hooked methods.
+	 *
+	 * <p>While enabled, the number of calls and the time spent in the callbacks and the original
+	 * method are recorded for each hooked method and each of its callbacks. This adds some
+	 * overhead to every call of a hooked method, so it should only be used for diagnostics.
+	 *
+	 * @param enabled {@code true} to record statistics, {@code false} to stop it (the default).
+	 * @see #getHookStats
+	 */
+	public static void setHookStatsEnabled(boolean enabled) {
+		hookStatsEnabled = enabled;
+	}
+
+	/**
+	 * Returns a snapshot of the statistics recorded for hooked methods since they have first been
+	 * enabled with {@link #setHookStatsEnabled} or last been reset with {@link #resetHookStats}.
+	 * Disabling and enabling them again doesn't reset them.
+	 *
+	 * @return A list with one entry for each hooked method which has been called while recording.
+	 */
+	public static List<HookStats> getHookStats() {
+		List<HookStats> result = new ArrayList<>();
+		for (Map.Entry<Member, AdditionalHookInfo> entry : sHookedMethodCallbacks.entrySet()) {
+			HookStats.MemberRecorder recorder = entry.getValue().stats;
+			if (recorder != null)
+				result.add(HookStats.snapshot(entry.getKey(), recorder));
+		}
+		return result;
+	}
+
+	/**
+	 * Enables or disables profiling of the overhead which hooks add to the hooked methods.
+	 *
+	 * <p>While enabled, the statistics described for {@link #setHookStatsEnabled} are recorded as
+	 * well. In addition, the total time of each call is measured and split into the time spent in
+	 * the original method, in the callbacks and in Xposed itself. This makes calls of hooked
+	 * methods noticeably slower, so it should only be used for diagnostics.
+	 *
+	 * @param enabled {@code true} to profile calls, {@code false} to stop it (the default).
+	 * @see HookStats#getOverheadTime
+	 * @see #getHookStatsByOverhead
+	 */
+	public static void setHookProfilingEnabled(boolean enabled) {
+		hookProfilingEnabled = enabled;
+	}
+
+	/**
+	 * Returns the statistics for the hooked methods which have been profiled, ordered by their
+	 * overhead ratio (highest first). These are the hooks which slow down their methods the most.
+	 *
+	 * @see #setHookProfilingEnabled
+	 * @see HookStats#getOverheadRatio
+	 */
+	public static List<HookStats> getHookStatsByOverhead() {
+		List<HookStats> result = new ArrayList<>();
+		for (HookStats stats : getHookStats()) {
+			if (stats.getTotalTime().getCount() != 0)
+				result.add(stats);
+		}
+		Collections.sort(result, HookStats.BY_OVERHEAD_RATIO);
+		return result;
+	}
+
+	/**
+	 * Discards all statistics which have been recorded for hooked methods so far.
+	 */
+	public static void resetHookStats() {
+		for (AdditionalHookInfo additionalInfo : sHookedMethodCallbacks.values())
+			additionalInfo.stats = null;
+	}
+
+	/**
+	 * Enables or disables the recording of calls of hooked methods in a ring buffer.
+	 *
+	 * <p>While enabled, the last {@value DispatchTrace#CAPACITY} calls are kept, including the
+	 * thread, the time and the callbacks which have been executed. If the process crashes with an
+	 * uncaught exception, the most recent calls are written to the log.
+	 *
+	 * @param enabled {@code true} to record calls, {@code false} to stop and discard the recording
+	 *                (the default).
+	 * @see #getDispatchTrace
+	 */
+	public static void setDispatchTraceEnabled(boolean enabled) {
+		synchronized (DispatchTrace.class) {
+			if (!enabled) {
+				sDispatchTrace = null;
+				return;
+			} else if (sDispatchTrace == null) {
+				sDispatchTrace = new DispatchTrace();
+			}
+
+			if (!sTraceCrashHandlerInstalled) {
+				final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+				Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+					@Override
+					public void uncaughtException(Thread thread, Throwable ex) {
+						logDispatchTraceForCrash();
+						LogWriter.flush();
+						if (previous != null)
+							previous.uncaughtException(thread, ex);
+					}
+				});
+				sTraceCrashHandlerInstalled = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the calls which have been recorded since {@link #setDispatchTraceEnabled} has been
+	 * called, ordered from oldest to newest. Returns an empty list if recording is disabled.
+	 */
+	public static List<DispatchTrace.Record> getDispatchTrace() {
+		DispatchTrace trace = sDispatchTrace;
+		if (trace == null)
+			return new ArrayList<>();
+
+		Map<Integer, Member> members = new HashMap<>();
+		for (Map.Entry<Member, AdditionalHookInfo> entry : sHookedMethodCallbacks.entrySet())
+			members.put(entry.getValue().id, entry.getKey());
+		return trace.snapshot(members);
+	}
+
+	private static void logDispatchTraceForCrash() {
+		try {
+			List<DispatchTrace.Record> records = getDispatchTrace();
+			if (records.isEmpty())
+				return;
+
+			// The process is about to die, so don't use the asynchronous log.
+			StringBuilder sb = new StringBuilder("Last calls of hooked methods before the crash:");
+			for (DispatchTrace.Record record : records.subList(Math.max(0, records.size() - 100), records.size()))
+				sb.append('\n').append(record);
+			Log.e(TAG, sb.toString());
+		} catch (Throwable ignored) {}
+	}
+
+	/**
+	 * Sets after how many consecutive failures a callback is quarantined. Quarantined callbacks
+	 * aren't called anymore until they are released with {@link #releaseFromQuarantine}.
+	 * Callbacks which are part of Xposed itself are never quarantined.
+	 *
+	 * @param consecutiveFailures The number of exceptions a callback may throw in a row, or 0 to
+	 *                            never quarantine callbacks. The default is 100.
+	 */
+	public static void setQuarantineThreshold(int consecutiveFailures) {
+		quarantineThreshold = consecutiveFailures;
+	}
+
+	/**
+	 * Returns information about all callbacks which have thrown an exception so far.
+	 */
+	public static List<CallbackFailures> getCallbackFailures() {
+		return CallbackFailures.snapshot();
+	}
+
+	/**
+	 * Calls a quarantined callback again and resets its count of consecutive failures.
+	 *
+	 * @param callback The callback to be released.
+	 */
+	public static void releaseFromQuarantine(XC_MethodHook callback) {
+		CallbackFailures.Recorder recorder = callback.failures;
+		if (recorder == null)
+			return;
+
+		recorder.release();
+		refreshSnapshots(callback);
+	}
+
+	/** Rebuilds the callbacks of all methods which have been hooked with the given callback. */
+	private static void refreshSnapshots(XC_MethodHook callback) {
+		for (AdditionalHookInfo additionalInfo : sHookedMethodCallbacks.values()) {
+			if (additionalInfo.callbacks.contains(callback))
+				additionalInfo.refreshSnapshot();
+		}
 	}
 
 	/**
 	 * Hook any method (or constructor) with the specified callback. See below for some wrappers
 	 * that make it easier to find a method/constructor in one step.
 	 *
+	 * <p>This method is thread-safe. If multiple threads hook the same method at the same time,
+	 * it is intercepted only once and all of them return after the interception is active.
+	 * Calls of the hooked method which are already in progress might not execute the new callback.
+	 *
 	 * @param hookMethod The method to be hooked.
 	 * @param callback The callback to be executed when the hooked method is called.
 	 * @return An object that can be used to remove the hook.
@@ -201,6 +444,88 @@ public final class XposedBridge {
 	 * @see #hookAllConstructors
 	 */
 	public static XC_MethodHook.Unhook hookMethod(Member hookMethod, XC_MethodHook callback) {
+		checkHookable(hookMethod);
+
+		AdditionalHookInfo additionalInfo = getOrInstallHooks(new Member[] { hookMethod })[0];
+		additionalInfo.addCallback(callback);
+		return callback.new Unhook(hookMethod);
+	}
+
+	/**
+	 * Hooks multiple methods (or constructors) with the same callback. All methods are checked
+	 * before any of them is hooked. Methods which aren't hooked yet are still intercepted one by
+	 * one, but within a single acquisition of the install lock, and the callbacks of each method
+	 * are rebuilt once rather than once per callback.
+	 *
+	 * @param hookMethods The methods to be hooked.
+	 * @param callback The callback to be executed when the hooked methods are called.
+	 * @return A set containing one object for each method which can be used to unhook it.
+	 * @throws IllegalArgumentException In case any of the methods can't be hooked. None of the
+	 *                                  methods are hooked in this case.
+	 */
+	public static Set<XC_MethodHook.Unhook> hookMethods(Collection<? extends Member> hookMethods, XC_MethodHook callback) {
+		return hookMethods(hookMethods, new XC_MethodHook[] { callback });
+	}
+
+	/**
+	 * Hooks multiple methods (or constructors) with multiple callbacks. Like
+	 * {@link #hookMethods(Collection, XC_MethodHook)}, but adds all callbacks to each method.
+	 *
+	 * @param hookMethods The methods to be hooked.
+	 * @param callbacks The callbacks to be executed when the hooked methods are called.
+	 * @return A set containing one object for each combination of method and callback which can
+	 *         be used to unhook it.
+	 * @throws IllegalArgumentException In case any of the methods can't be hooked or no callbacks
+	 *                                  are given. None of the methods are hooked in this case.
+	 */
+	public static Set<XC_MethodHook.Unhook> hookMethods(Collection<? extends Member> hookMethods, XC_MethodHook... callbacks) {
+		if (callbacks.length == 0)
+			throw new IllegalArgumentException("At least one callback is required");
+
+		Member[] members = hookMethods.toArray(new Member[hookMethods.size()]);
+		for (Member hookMethod : members)
+			checkHookable(hookMethod);
+
+		AdditionalHookInfo[] additionalInfos = getOrInstallHooks(members);
+		List<XC_MethodHook> callbackList = Arrays.asList(callbacks);
+		Set<XC_MethodHook.Unhook> unhooks = new HashSet<>();
+		for (int i = 0; i < members.length; i++) {
+			additionalInfos[i].addCallbacks(callbackList);
+			for (XC_MethodHook callback : callbacks)
+				unhooks.add(callback.new Unhook(members[i]));
+		}
+		return unhooks;
+	}
+
+	/**
+	 * Returns the hook information for the given methods. Methods which aren't hooked yet are
+	 * intercepted while the install lock is held once for all of them.
+	 */
+	private static AdditionalHookInfo[] getOrInstallHooks(Member[] members) {
+		AdditionalHookInfo[] additionalInfos = new AdditionalHookInfo[members.length];
+		boolean missing = false;
+		for (int i = 0; i < members.length; i++) {
+			additionalInfos[i] = sHookedMethodCallbacks.get(members[i]);
+			if (additionalInfos[i] == null)
+				missing = true;
+		}
+
+		if (missing) {
+			synchronized (sHookInstallLock) {
+				for (int i = 0; i < members.length; i++) {
+					if (additionalInfos[i] != null)
+						continue;
+
+					additionalInfos[i] = sHookedMethodCallbacks.get(members[i]);
+					if (additionalInfos[i] == null)
+						additionalInfos[i] = installHook(members[i]);
+				}
+			}
+		}
+		return additionalInfos;
+	}
+
+	/*package*/ static void checkHookable(Member hookMethod) {
 		if (!(hookMethod instanceof Method) && !(hookMethod instanceof Constructor<?>)) {
 			throw new IllegalArgumentException("Only methods and constructors can be hooked: " + hookMethod.toString());
 		} else if (hookMethod.getDeclaringClass().isInterface()) {
@@ -208,48 +533,55 @@ public final class XposedBridge {
 		} else if (Modifier.isAbstract(hookMethod.getModifiers())) {
 			throw new IllegalArgumentException("Cannot hook abstract methods: " + hookMethod.toString());
 		}
+	}
 
-		boolean newMethod = false;
-		CopyOnWriteSortedSet<XC_MethodHook> callbacks;
-		synchronized (sHookedMethodCallbacks) {
-			callbacks = sHookedMethodCallbacks.get(hookMethod);
-			if (callbacks == null) {
-				callbacks = new CopyOnWriteSortedSet<>();
-				sHookedMethodCallbacks.put(hookMethod, callbacks);
-				newMethod = true;
-			}
-		}
-		callbacks.add(callback);
+	/**
+	 * Intercepts the given method, unless that has already happened, and returns its hook information.
+	 * Must be called with {@link #sHookInstallLock} held. The information is only published in
+	 * {@link #sHookedMethodCallbacks} once the hook is active, so other threads which find it there
+	 * can use it without any locking.
+	 */
+	private static AdditionalHookInfo installHook(Member hookMethod) {
+		AdditionalHookInfo additionalInfo = sHookedMethodCallbacks.get(hookMethod);
+		if (additionalInfo != null)
+			return additionalInfo;
+
+		additionalInfo = new AdditionalHookInfo(hookMethod);
+		Class<?> declaringClass = hookMethod.getDeclaringClass();
+		hookMethodNative(hookMethod, declaringClass, getMethodSlot(hookMethod), additionalInfo);
+		sHookedMethodCallbacks.put(hookMethod, additionalInfo);
+		return additionalInfo;
+	}
 
-		if (newMethod) {
-			Class<?> declaringClass = hookMethod.getDeclaringClass();
-			int slot;
-			Class<?>[] parameterTypes;
-			Class<?> returnType;
-			if (runtime == RUNTIME_ART) {
-				slot = 0;
-				parameterTypes = null;
-				returnType = null;
-			} else if (hookMethod instanceof Method) {
-				slot = getIntField(hookMethod, "slot");
-				parameterTypes = ((Method) hookMethod).getParameterTypes();
-				returnType = ((Method) hookMethod).getReturnType();
+	/** Returns the Dalvik method slot. Must be called with {@link #sHookInstallLock} held. */
+	private static int getMethodSlot(Member hookMethod) {
+		if (runtime == RUNTIME_ART)
+			return 0;
+
+		try {
+			if (hookMethod instanceof Method) {
+				if (sMethodSlotField == null)
+					sMethodSlotField = findField(Method.class, "slot");
+				return sMethodSlotField.getInt(hookMethod);
 			} else {
-				slot = getIntField(hookMethod, "slot");
-				parameterTypes = ((Constructor<?>) hookMethod).getParameterTypes();
-				returnType = null;
+				if (sConstructorSlotField == null)
+					sConstructorSlotField = findField(Constructor.class, "slot");
+				return sConstructorSlotField.getInt(hookMethod);
 			}
-
-			AdditionalHookInfo additionalInfo = new AdditionalHookInfo(callbacks, parameterTypes, returnType);
-			hookMethodNative(hookMethod, declaringClass, slot, additionalInfo);
+		} catch (IllegalAccessException e) {
+			// should not happen
+			XposedBridge.log(e);
+			throw new IllegalAccessError(e.getMessage());
 		}
-
-		return callback.new Unhook(hookMethod);
 	}
 
 	/**
 	 * Removes the callback for a hooked method/constructor.
 	 *
+	 * <p>Like {@link #hookMethod}, this method is thread-safe. Calls of the hooked method which
+	 * are already in progress might still execute the callback. Once the last callback has been
+	 * removed, calls of the method are passed on to the original method with minimal overhead.
+	 *
 	 * @deprecated Use {@link XC_MethodHook.Unhook#unhook} instead. An instance of the {@code Unhook}
 	 * class is returned when you hook the method.
 	 *
@@ -258,13 +590,124 @@ public final class XposedBridge {
 	 */
 	@Deprecated
 	public static void unhookMethod(Member hookMethod, XC_MethodHook callback) {
-		CopyOnWriteSortedSet<XC_MethodHook> callbacks;
-		synchronized (sHookedMethodCallbacks) {
-			callbacks = sHookedMethodCallbacks.get(hookMethod);
-			if (callbacks == null)
+		AdditionalHookInfo additionalInfo = sHookedMethodCallbacks.get(hookMethod);
+		if (additionalInfo == null)
+			return;
+		additionalInfo.removeCallback(callback);
+	}
+
+	/**
+	 * Pauses or resumes all callbacks of a hooked method/constructor. While paused, the original
+	 * method is called directly, almost as if it wasn't hooked. Callbacks which are added while
+	 * the method is paused don't run until it is resumed.
+	 *
+	 * <p>This is much cheaper than removing and adding the callbacks again.
+	 *
+	 * @param hookMethod The hooked method.
+	 * @param paused {@code true} to pause the callbacks, {@code false} to resume them.
+	 * @see XC_MethodHook.Unhook#setPaused
+	 */
+	public static void setMethodPaused(Member hookMethod, boolean paused) {
+		AdditionalHookInfo additionalInfo = sHookedMethodCallbacks.get(hookMethod);
+		if (additionalInfo != null)
+			additionalInfo.setPaused(paused);
+	}
+
+	/**
+	 * Returns whether the callbacks of a hooked method/constructor have been paused with
+	 * {@link #setMethodPaused}.
+	 */
+	public static boolean isMethodPaused(Member hookMethod) {
+		AdditionalHookInfo additionalInfo = sHookedMethodCallbacks.get(hookMethod);
+		return additionalInfo != null && additionalInfo.isPaused();
+	}
+
+	/**
+	 * Removes all callbacks which are restricted to other packages or processes. Afterwards,
+	 * methods without remaining callbacks call the original method directly.
+	 */
+	/*package*/ static void removeOutOfScopeCallbacks(String packageName, String processName) {
+		sScopePackageName = packageName;
+		sScopeProcessName = processName;
+		sScopeKnown = true;
+
+		int dropped = 0;
+		for (AdditionalHookInfo additionalInfo : sHookedMethodCallbacks.values()) {
+			if (additionalInfo.removeOutOfScopeCallbacks())
+				dropped++;
+		}
+		if (dropped > 0)
+			Log.d(TAG, dropped + " hooked methods have no callbacks for " + processName + " anymore");
+	}
+
+	private static boolean isInScope(XC_MethodHook callback) {
+		return !sScopeKnown || callback.isInScope(sScopePackageName, sScopeProcessName);
+	}
+
+	/**
+	 * Suppresses all hooks for the current thread until the returned scope is closed. While
+	 * suppressed, hooked methods call the original method directly, without executing any callbacks.
+	 * This is useful for callbacks which need to call hooked methods (including the one they are
+	 * hooked to) without triggering their own or other callbacks.
+	 *
+	 * <p>Scopes can be nested. They should always be closed in a {@code finally} block:
+	 * <pre class="prettyprint">
+	 * XposedBridge.SuppressionScope scope = XposedBridge.suppressHooks();
+	 * try {
+	 *     // ...
+	 * } finally {
+	 *     scope.close();
+	 * }
+	 * </pre>
+	 *
+	 * @return The scope, which must be closed to activate the hooks again.
+	 */
+	public static SuppressionScope suppressHooks() {
+		int[] depth = sSuppressionDepth.get();
+		depth[0]++;
+		sOpenSuppressionScopes.incrementAndGet();
+		return new SuppressionScope(depth);
+	}
+
+	/**
+	 * A scope in which the hooks are suppressed for the current thread, see {@link #suppressHooks}.
+	 */
+	public static final class SuppressionScope implements Closeable {
+		private final int[] depth;
+		private boolean closed = false;
+
+		private SuppressionScope(int[] depth) {
+			this.depth = depth;
+		}
+
+		/**
+		 * Ends this scope. Hooks are active again once all nested scopes have been closed.
+		 * Calling this method more than once has no effect.
+		 */
+		@Override
+		public void close() {
+			if (closed)
 				return;
+			closed = true;
+			depth[0]--;
+			sOpenSuppressionScopes.decrementAndGet();
 		}
-		callbacks.remove(callback);
+	}
+
+	private static boolean isSuppressedForCurrentThread() {
+		// Avoid the thread-local lookup as long as no thread suppresses hooks.
+		return sOpenSuppressionScopes.get() != 0 && sSuppressionDepth.get()[0] != 0;
+	}
+
+	/*package*/ static void setCallbackPaused(Member hookMethod, XC_MethodHook callback, boolean paused) {
+		AdditionalHookInfo additionalInfo = sHookedMethodCallbacks.get(hookMethod);
+		if (additionalInfo != null)
+			additionalInfo.setCallbackPaused(callback, paused);
+	}
+
+	/*package*/ static boolean isCallbackPaused(Member hookMethod, XC_MethodHook callback) {
+		AdditionalHookInfo additionalInfo = sHookedMethodCallbacks.get(hookMethod);
+		return additionalInfo != null && additionalInfo.isCallbackPaused(callback);
 	}
 
 	/**
@@ -279,11 +722,11 @@ public final class XposedBridge {
 	 */
 	@SuppressWarnings("UnusedReturnValue")
 	public static Set<XC_MethodHook.Unhook> hookAllMethods(Class<?> hookClass, String methodName, XC_MethodHook callback) {
-		Set<XC_MethodHook.Unhook> unhooks = new HashSet<>();
+		List<Member> methods = new ArrayList<>();
 		for (Member method : hookClass.getDeclaredMethods())
 			if (method.getName().equals(methodName))
-				unhooks.add(hookMethod(method, callback));
-		return unhooks;
+				methods.add(method);
+		return hookMethods(methods, callback);
 	}
 
 	/**
@@ -295,10 +738,7 @@ public final class XposedBridge {
 	 */
 	@SuppressWarnings("UnusedReturnValue")
 	public static Set<XC_MethodHook.Unhook> hookAllConstructors(Class<?> hookClass, XC_MethodHook callback) {
-		Set<XC_MethodHook.Unhook> unhooks = new HashSet<>();
-		for (Member constructor : hookClass.getDeclaredConstructors())
-			unhooks.add(hookMethod(constructor, callback));
-		return unhooks;
+		return hookMethods(Arrays.<Member>asList(hookClass.getDeclaredConstructors()), callback);
 	}
 
 	/**
@@ -307,8 +747,11 @@ public final class XposedBridge {
 	private static Object handleHookedMethod(Member method, int originalMethodId, Object additionalInfoObj,
 			Object thisObject, Object[] args) throws Throwable {
 		AdditionalHookInfo additionalInfo = (AdditionalHookInfo) additionalInfoObj;
+		CallbackSnapshot callbacks = additionalInfo.snapshot;
 
-		if (disableHooks) {
+		// Methods can't be unhooked natively, so this is kept as short as possible for methods
+		// whose callbacks have all been removed.
+		if (disableHooks || callbacks == CallbackSnapshot.EMPTY || isSuppressedForCurrentThread()) {
 			try {
 				return invokeOriginalMethodNative(method, originalMethodId, additionalInfo.parameterTypes,
 						additionalInfo.returnType, thisObject, args);
@@ -317,71 +760,312 @@ public final class XposedBridge {
 			}
 		}
 
-		Object[] callbacksSnapshot = additionalInfo.callbacks.getSnapshot();
-		final int callbacksLength = callbacksSnapshot.length;
-		if (callbacksLength == 0) {
-			try {
-				return invokeOriginalMethodNative(method, originalMethodId, additionalInfo.parameterTypes,
-						additionalInfo.returnType, thisObject, args);
-			} catch (InvocationTargetException e) {
-				throw e.getCause();
+		final boolean profile = hookProfilingEnabled;
+		HookStats.MemberRecorder stats = null;
+		if (hookStatsEnabled || profile) {
+			stats = additionalInfo.getStatsRecorder();
+			stats.invocations.increment();
+		}
+
+		if (profile)
+			return profileCallbacks(method, originalMethodId, additionalInfo, callbacks, thisObject, args, stats);
+		return handleCallbacks(method, originalMethodId, additionalInfo, callbacks, thisObject, args, stats);
+	}
+
+	/**
+	 * Handles a call like {@link #handleCallbacks}, but also measures how much time is spent
+	 * outside of the original method.
+	 */
+	private static Object profileCallbacks(Member method, int originalMethodId, AdditionalHookInfo additionalInfo,
+			CallbackSnapshot callbacks, Object thisObject, Object[] args, HookStats.MemberRecorder stats) throws Throwable {
+		final long[] profiledTimes = HookStats.getProfiledTimes();
+		final long originalBefore = profiledTimes[HookStats.PROFILED_ORIGINAL];
+		final long callbacksBefore = profiledTimes[HookStats.PROFILED_CALLBACKS];
+		final long start = System.nanoTime();
+		try {
+			return handleCallbacks(method, originalMethodId, additionalInfo, callbacks, thisObject, args, stats);
+		} finally {
+			stats.recordProfiledCall(System.nanoTime() - start,
+					profiledTimes[HookStats.PROFILED_ORIGINAL] - originalBefore,
+					profiledTimes[HookStats.PROFILED_CALLBACKS] - callbacksBefore);
+			profiledTimes[HookStats.PROFILED_ORIGINAL] = originalBefore;
+			profiledTimes[HookStats.PROFILED_CALLBACKS] = callbacksBefore;
+		}
+	}
+
+	/**
+	 * Executes the callbacks for a call of a hooked method which has active callbacks.
+	 */
+	private static Object handleCallbacks(Member method, int originalMethodId, AdditionalHookInfo additionalInfo,
+			CallbackSnapshot callbacks, Object thisObject, Object[] args, HookStats.MemberRecorder stats) throws Throwable {
+		final DispatchTrace trace = sDispatchTrace;
+		final long traceStart = (trace != null) ? System.nanoTime() : 0;
+
+		// Check the guards before anything else is done for the call.
+		long rejected = 0;
+		boolean[] rejectedOverflow = null;
+		if (callbacks.guards != null) {
+			int accepted = 0;
+			for (int i = 0; i < callbacks.length; i++) {
+				XC_MethodHook.Guard guard = callbacks.guards[i];
+				if (guard == null || checkGuard(guard, callbacks.all[i], additionalInfo, method, thisObject, args)) {
+					accepted++;
+				} else if (i < 64) {
+					rejected |= 1L << i;
+				} else {
+					if (rejectedOverflow == null)
+						rejectedOverflow = new boolean[callbacks.length - 64];
+					rejectedOverflow[i - 64] = true;
+				}
 			}
+
+			if (accepted == 0)
+				return callOriginal(method, originalMethodId, additionalInfo, callbacks, thisObject, args,
+						stats, trace, traceStart);
+		}
+
+		if (callbacks.isConstant) {
+			if (trace != null)
+				trace.record(additionalInfo.id, traceStart, System.nanoTime(), 1L, 1, 0, false, false);
+			return callbacks.constantResult;
+		} else if (callbacks.replacement != null) {
+			return callReplacement(callbacks.replacement, method, thisObject, args, additionalInfo.id,
+					callbacks.recycleParams, stats, trace, traceStart);
+		} else if (callbacks.before.length == 0 && callbacks.after.length == 0) {
+			return callOriginal(method, originalMethodId, additionalInfo, callbacks, thisObject, args,
+					stats, trace, traceStart);
+		}
+
+		final boolean recycle = callbacks.recycleParams;
+		MethodHookParam param = recycle ? MethodHookParam.obtain() : new MethodHookParam();
+		try {
+			param.method = method;
+			param.thisObject = thisObject;
+			param.args = args;
+			return dispatch(param, method, originalMethodId, additionalInfo, callbacks, stats,
+					rejected, rejectedOverflow, trace, traceStart);
+		} finally {
+			if (recycle)
+				param.recycle();
+		}
+	}
+
+	private static boolean checkGuard(XC_MethodHook.Guard guard, XC_MethodHook callback,
+			AdditionalHookInfo additionalInfo, Member method, Object thisObject, Object[] args) {
+		try {
+			return guard.accept(method, thisObject, args);
+		} catch (Throwable t) {
+			// Skip the callback, so that the failure isn't reset by a successful execution.
+			onCallbackFailed(callback, additionalInfo, method, t);
+			return false;
 		}
+	}
+
+	/**
+	 * Records an exception thrown by a callback or its guard. If the callback is quarantined, the
+	 * callbacks of all methods which it has hooked are updated so that it isn't called anymore.
+	 */
+	private static void onCallbackFailed(XC_MethodHook callback, AdditionalHookInfo additionalInfo,
+			Member method, Throwable t) {
+		if (CallbackFailures.getRecorder(callback).record(method, t, quarantineThreshold))
+			refreshSnapshots(callback);
+		else if (callback.quarantined)
+			additionalInfo.refreshSnapshot();
+	}
 
-		MethodHookParam param = new MethodHookParam();
-		param.method = method;
-		param.thisObject = thisObject;
-		param.args = args;
+	private static final int[] ALREADY_ACTIVE = new int[0];
+
+	/**
+	 * Marks a non-reentrant callback as running on the current thread.
+	 *
+	 * @return The counter which has to be decremented once the callback has finished, {@code null}
+	 *         for reentrant callbacks, or {@link #ALREADY_ACTIVE} if the callback must be skipped.
+	 */
+	private static int[] enterCallback(XC_MethodHook callback) {
+		ThreadLocal<int[]> threadLocal = callback.activeDepth;
+		if (threadLocal == null)
+			return null;
+
+		int[] activeDepth = threadLocal.get();
+		if (activeDepth[0] != 0)
+			return ALREADY_ACTIVE;
+		activeDepth[0]++;
+		return activeDepth;
+	}
+
+	private static void onCallbackSucceeded(XC_MethodHook callback) {
+		CallbackFailures.Recorder recorder = callback.failures;
+		if (recorder != null && recorder.consecutiveFailures != 0)
+			recorder.consecutiveFailures = 0;
+	}
+
+	/** Returns whether the callback at the given position has been rejected by its guard. */
+	private static boolean isRejected(long rejected, boolean[] rejectedOverflow, int idx) {
+		if (idx < 64)
+			return (rejected & (1L << idx)) != 0;
+		return rejectedOverflow != null && rejectedOverflow[idx - 64];
+	}
+
+	/**
+	 * Calls the original method for a call which doesn't need to execute any callbacks.
+	 */
+	private static Object callOriginal(Member method, int originalMethodId, AdditionalHookInfo additionalInfo,
+			CallbackSnapshot callbacks, Object thisObject, Object[] args, HookStats.MemberRecorder stats,
+			DispatchTrace trace, long traceStart) throws Throwable {
+		long start = (stats != null) ? System.nanoTime() : 0;
+		boolean threw = true;
+		try {
+			Object result = invokeOriginalMethodNative(method, originalMethodId, additionalInfo.parameterTypes,
+					additionalInfo.returnType, thisObject, args);
+			threw = false;
+			return result;
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		} finally {
+			if (stats != null)
+				stats.recordOriginal(System.nanoTime() - start);
+			if (trace != null)
+				trace.record(additionalInfo.id, traceStart, System.nanoTime(), 0, callbacks.length, -1, true, threw);
+		}
+	}
+
+	/**
+	 * Calls an {@link XC_MethodReplacement} which is the only callback for a method. This is
+	 * equivalent to the generic dispatching, but avoids its overhead.
+	 */
+	private static Object callReplacement(XC_MethodReplacement replacement, Member method,
+			Object thisObject, Object[] args, int memberId, boolean recycle,
+			HookStats.MemberRecorder stats, DispatchTrace trace, long traceStart) throws Throwable {
+		MethodHookParam param = recycle ? MethodHookParam.obtain() : new MethodHookParam();
+		long start = (stats != null) ? System.nanoTime() : 0;
+		boolean threw = true;
+		try {
+			param.method = method;
+			param.thisObject = thisObject;
+			param.args = args;
+			Object result = replacement.replaceHookedMethod(param);
+			threw = false;
+			return result;
+		} finally {
+			if (trace != null)
+				trace.record(memberId, traceStart, System.nanoTime(), 1L, 1, 0, false, threw);
+			if (stats != null) {
+				long duration = System.nanoTime() - start;
+				stats.before.record(duration);
+				stats.recordBefore(replacement, duration);
+			}
+			if (recycle)
+				param.recycle();
+		}
+	}
+
+	private static Object dispatch(MethodHookParam param, Member method, int originalMethodId,
+			AdditionalHookInfo additionalInfo, CallbackSnapshot callbacks, HookStats.MemberRecorder stats,
+			long rejected, boolean[] rejectedOverflow, DispatchTrace trace, long traceStart) throws Throwable {
+		// Positions of the callbacks which have been executed, only needed for tracing.
+		long callbacksRun = 0;
+		int returnedEarlyIdx = -1;
 
 		// call "before method" callbacks
-		int beforeIdx = 0;
-		do {
+		final XC_MethodHook[] before = callbacks.before;
+		int stopIdx = callbacks.length;
+		long phaseStart = (stats != null) ? System.nanoTime() : 0;
+		for (int i = 0; i < before.length; i++) {
+			if (isRejected(rejected, rejectedOverflow, callbacks.beforeIdx[i]))
+				continue;
+
+			int[] activeDepth = enterCallback(before[i]);
+			if (activeDepth == ALREADY_ACTIVE)
+				continue;
+			if (trace != null && callbacks.beforeIdx[i] < 64)
+				callbacksRun |= 1L << callbacks.beforeIdx[i];
+
+			long start = (stats != null) ? System.nanoTime() : 0;
 			try {
-				((XC_MethodHook) callbacksSnapshot[beforeIdx]).beforeHookedMethod(param);
+				before[i].beforeHookedMethod(param);
+				onCallbackSucceeded(before[i]);
 			} catch (Throwable t) {
-				XposedBridge.log(t);
+				onCallbackFailed(before[i], additionalInfo, method, t);
 
 				// reset result (ignoring what the unexpectedly exiting callback did)
 				param.setResult(null);
 				param.returnEarly = false;
 				continue;
+			} finally {
+				if (activeDepth != null)
+					activeDepth[0]--;
+				if (stats != null)
+					stats.recordBefore(before[i], System.nanoTime() - start);
 			}
 
 			if (param.returnEarly) {
 				// skip remaining "before" callbacks and corresponding "after" callbacks
-				beforeIdx++;
+				stopIdx = callbacks.beforeIdx[i] + 1;
+				returnedEarlyIdx = callbacks.beforeIdx[i];
 				break;
 			}
-		} while (++beforeIdx < callbacksLength);
+		}
+
+		if (stats != null)
+			stats.before.record(System.nanoTime() - phaseStart);
 
 		// call original method if not requested otherwise
 		if (!param.returnEarly) {
+			long start = (stats != null) ? System.nanoTime() : 0;
 			try {
 				param.setResult(invokeOriginalMethodNative(method, originalMethodId,
 						additionalInfo.parameterTypes, additionalInfo.returnType, param.thisObject, param.args));
 			} catch (InvocationTargetException e) {
 				param.setThrowable(e.getCause());
+			} finally {
+				if (stats != null)
+					stats.recordOriginal(System.nanoTime() - start);
 			}
 		}
 
 		// call "after method" callbacks
-		int afterIdx = beforeIdx - 1;
-		do {
+		final XC_MethodHook[] after = callbacks.after;
+		final int[] afterIdx = callbacks.afterIdx;
+		phaseStart = (stats != null) ? System.nanoTime() : 0;
+		for (int i = after.length - 1; i >= 0; i--) {
+			if (afterIdx[i] >= stopIdx || isRejected(rejected, rejectedOverflow, afterIdx[i]))
+				continue;
+
+			int[] activeDepth = enterCallback(after[i]);
+			if (activeDepth == ALREADY_ACTIVE)
+				continue;
+			if (trace != null && afterIdx[i] < 64)
+				callbacksRun |= 1L << afterIdx[i];
+
 			Object lastResult =  param.getResult();
 			Throwable lastThrowable = param.getThrowable();
 
+			long start = (stats != null) ? System.nanoTime() : 0;
 			try {
-				((XC_MethodHook) callbacksSnapshot[afterIdx]).afterHookedMethod(param);
+				after[i].afterHookedMethod(param);
+				onCallbackSucceeded(after[i]);
 			} catch (Throwable t) {
-				XposedBridge.log(t);
+				onCallbackFailed(after[i], additionalInfo, method, t);
 
 				// reset to last result (ignoring what the unexpectedly exiting callback did)
 				if (lastThrowable == null)
 					param.setResult(lastResult);
 				else
 					param.setThrowable(lastThrowable);
+			} finally {
+				if (activeDepth != null)
+					activeDepth[0]--;
+				if (stats != null)
+					stats.recordAfter(after[i], System.nanoTime() - start);
 			}
-		} while (--afterIdx >= 0);
+		}
+
+		if (stats != null)
+			stats.after.record(System.nanoTime() - phaseStart);
+
+		if (trace != null)
+			trace.record(additionalInfo.id, traceStart, System.nanoTime(), callbacksRun, callbacks.length,
+					returnedEarlyIdx, returnedEarlyIdx == -1, param.hasThrowable());
 
 		// return
 		if (param.hasThrowable())
@@ -461,12 +1145,20 @@ public final class XposedBridge {
 			args = EMPTY_ARRAY;
 		}
 
+		if (runtime == RUNTIME_ART && (method instanceof Method || method instanceof Constructor)) {
+			return invokeOriginalMethodNative(method, 0, null, null, thisObject, args);
+		}
+
+		// Hooked methods already have their signature resolved.
+		AdditionalHookInfo additionalInfo = sHookedMethodCallbacks.get(method);
+		if (additionalInfo != null) {
+			return invokeOriginalMethodNative(method, 0, additionalInfo.parameterTypes,
+					additionalInfo.returnType, thisObject, args);
+		}
+
 		Class<?>[] parameterTypes;
 		Class<?> returnType;
-		if (runtime == RUNTIME_ART && (method instanceof Method || method instanceof Constructor)) {
-			parameterTypes = null;
-			returnType = null;
-		} else if (method instanceof Method) {
+		if (method instanceof Method) {
 			parameterTypes = ((Method) method).getParameterTypes();
 			returnType = ((Method) method).getReturnType();
 		} else if (method instanceof Constructor) {
@@ -479,6 +1171,69 @@ public final class XposedBridge {
 		return invokeOriginalMethodNative(method, 0, parameterTypes, returnType, thisObject, args);
 	}
 
+	/**
+	 * Returns an object which calls the original implementation of a method or constructor.
+	 * Everything that is needed for the call is resolved once, so this is more efficient than
+	 * {@link #invokeOriginalMethod} for repeated calls of the same method.
+	 *
+	 * @param method The method to be called.
+	 * @return The invoker, which can be kept and used as long as needed.
+	 * @throws IllegalArgumentException if {@code method} isn't a {@link Method} or {@link Constructor}.
+	 */
+	public static OriginalMethodInvoker getOriginalMethodInvoker(Member method) {
+		if (!(method instanceof Method) && !(method instanceof Constructor)) {
+			throw new IllegalArgumentException("method must be of type Method or Constructor");
+		}
+		return new OriginalMethodInvoker(method);
+	}
+
+	/**
+	 * Calls the original implementation of a method or constructor, see {@link #getOriginalMethodInvoker}.
+	 */
+	public static final class OriginalMethodInvoker {
+		private final Member method;
+		private final Class<?>[] parameterTypes;
+		private final Class<?> returnType;
+
+		private OriginalMethodInvoker(Member method) {
+			this.method = method;
+			AdditionalHookInfo additionalInfo = sHookedMethodCallbacks.get(method);
+			if (runtime == RUNTIME_ART) {
+				parameterTypes = null;
+				returnType = null;
+			} else if (additionalInfo != null) {
+				parameterTypes = additionalInfo.parameterTypes;
+				returnType = additionalInfo.returnType;
+			} else if (method instanceof Method) {
+				parameterTypes = ((Method) method).getParameterTypes();
+				returnType = ((Method) method).getReturnType();
+			} else {
+				parameterTypes = ((Constructor<?>) method).getParameterTypes();
+				returnType = null;
+			}
+		}
+
+		/**
+		 * Returns the method/constructor which is called by this object.
+		 */
+		public Member getMethod() {
+			return method;
+		}
+
+		/**
+		 * Calls the original method, see {@link XposedBridge#invokeOriginalMethod} for details.
+		 *
+		 * @param thisObject For non-static calls, the "this" pointer, otherwise {@code null}.
+		 * @param args Arguments for the method call.
+		 * @return The result returned from the invoked method.
+		 */
+		public Object invoke(Object thisObject, Object... args)
+				throws NullPointerException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+			return invokeOriginalMethodNative(method, 0, parameterTypes, returnType, thisObject,
+					(args != null) ? args : EMPTY_ARRAY);
+		}
+	}
+
 	/*package*/ static void setObjectClass(Object obj, Class<?> clazz) {
 		if (clazz.isAssignableFrom(obj.getClass())) {
 			throw new IllegalArgumentException("Cannot transfer object from " + obj.getClass() + " to " + clazz);
@@ -508,59 +1263,399 @@ public final class XposedBridge {
 
 	/*package*/ static native void invalidateCallersNative(Member[] methods);
 
-	/** @hide */
+	/**
+	 * A set which is ordered by the natural order of its elements and optimized for reading.
+	 * Membership is determined by identity, not by {@link Object#equals}. Each modification
+	 * publishes a new array, which can be read without locking via {@link #getSnapshot}.
+	 * @hide
+	 */
 	public static final class CopyOnWriteSortedSet<E> {
 		private transient volatile Object[] elements = EMPTY_ARRAY;
 
 		@SuppressWarnings("UnusedReturnValue")
 		public synchronized boolean add(E e) {
-			int index = indexOf(e);
+			Object[] elements = this.elements;
+			int index = search(elements, elements.length, e);
 			if (index >= 0)
 				return false;
 
+			index = -index - 1;
 			Object[] newElements = new Object[elements.length + 1];
-			System.arraycopy(elements, 0, newElements, 0, elements.length);
-			newElements[elements.length] = e;
-			Arrays.sort(newElements);
-			elements = newElements;
+			System.arraycopy(elements, 0, newElements, 0, index);
+			newElements[index] = e;
+			System.arraycopy(elements, index, newElements, index + 1, elements.length - index);
+			this.elements = newElements;
+			return true;
+		}
+
+		/**
+		 * Adds all elements which aren't contained in the set yet, publishing only one new snapshot.
+		 *
+		 * @return {@code true} if any element has been added.
+		 */
+		@SuppressWarnings("UnusedReturnValue")
+		public synchronized boolean addAll(Collection<? extends E> c) {
+			Object[] elements = this.elements;
+			Object[] added = c.toArray();
+			Arrays.sort(added);
+
+			// Skip duplicates, keeping the remaining elements sorted.
+			int addedCount = 0;
+			for (Object e : added) {
+				if (search(elements, elements.length, e) < 0 && search(added, addedCount, e) < 0)
+					added[addedCount++] = e;
+			}
+			if (addedCount == 0)
+				return false;
+
+			// Merge both sorted arrays.
+			Object[] newElements = new Object[elements.length + addedCount];
+			int i = 0, j = 0, k = 0;
+			while (i < elements.length && j < addedCount) {
+				if (compare(added[j], elements[i]) < 0)
+					newElements[k++] = added[j++];
+				else
+					newElements[k++] = elements[i++];
+			}
+			System.arraycopy(elements, i, newElements, k, elements.length - i);
+			System.arraycopy(added, j, newElements, k + elements.length - i, addedCount - j);
+			this.elements = newElements;
 			return true;
 		}
 
 		@SuppressWarnings("UnusedReturnValue")
 		public synchronized boolean remove(E e) {
-			int index = indexOf(e);
-			if (index == -1)
+			Object[] elements = this.elements;
+			int index = search(elements, elements.length, e);
+			if (index < 0)
 				return false;
 
 			Object[] newElements = new Object[elements.length - 1];
 			System.arraycopy(elements, 0, newElements, 0, index);
 			System.arraycopy(elements, index + 1, newElements, index, elements.length - index - 1);
-			elements = newElements;
+			this.elements = newElements;
 			return true;
 		}
 
-		private int indexOf(Object o) {
+		/**
+		 * Removes all given elements which are contained in the set, publishing only one new snapshot.
+		 *
+		 * @return {@code true} if any element has been removed.
+		 */
+		@SuppressWarnings("UnusedReturnValue")
+		public synchronized boolean removeAll(Collection<? extends E> c) {
+			Object[] elements = this.elements;
+			boolean[] removed = null;
+			int removedCount = 0;
+			for (Object e : c) {
+				int index = search(elements, elements.length, e);
+				if (index < 0)
+					continue;
+				if (removed == null)
+					removed = new boolean[elements.length];
+				if (!removed[index]) {
+					removed[index] = true;
+					removedCount++;
+				}
+			}
+			if (removedCount == 0)
+				return false;
+
+			Object[] newElements = new Object[elements.length - removedCount];
+			int k = 0;
 			for (int i = 0; i < elements.length; i++) {
-				if (o.equals(elements[i]))
-					return i;
+				if (!removed[i])
+					newElements[k++] = elements[i];
 			}
-			return -1;
+			this.elements = newElements;
+			return true;
+		}
+
+		public boolean contains(E e) {
+			Object[] elements = this.elements;
+			return search(elements, elements.length, e) >= 0;
 		}
 
 		public Object[] getSnapshot() {
 			return elements;
 		}
+
+		/**
+		 * Searches the first {@code length} elements of a sorted array for the given object.
+		 * Works like {@link Arrays#binarySearch}, but only returns the index of the same instance.
+		 */
+		private static int search(Object[] a, int length, Object e) {
+			int low = 0;
+			int high = length - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (a[mid] == e)
+					return mid;
+
+				int cmp = compare(a[mid], e);
+				if (cmp < 0) {
+					low = mid + 1;
+				} else if (cmp > 0) {
+					high = mid - 1;
+				} else {
+					low = mid;
+					break;
+				}
+			}
+
+			// Elements which can't be ordered relative to the searched one (e.g. callbacks with the same
+			// priority and identity hash code) are adjacent to the insertion point.
+			for (int i = low - 1; i >= 0 && isTied(a[i], e); i--) {
+				if (a[i] == e)
+					return i;
+			}
+			for (int i = low; i < length && isTied(a[i], e); i++) {
+				if (a[i] == e)
+					return i;
+			}
+			return -(low + 1);
+		}
+
+		private static boolean isTied(Object a, Object b) {
+			return Integer.signum(compare(a, b)) == Integer.signum(compare(b, a));
+		}
+
+		@SuppressWarnings("unchecked")
+		private static int compare(Object a, Object b) {
+			return ((Comparable<Object>) a).compareTo(b);
+		}
 	}
 
 	private static class AdditionalHookInfo {
-		final CopyOnWriteSortedSet<XC_MethodHook> callbacks;
+		/** Identifies the hooked method in a {@link DispatchTrace}. */
+		final int id = sNextMemberId.getAndIncrement();
+		final CopyOnWriteSortedSet<XC_MethodHook> callbacks = new CopyOnWriteSortedSet<>();
 		final Class<?>[] parameterTypes;
 		final Class<?> returnType;
+		volatile CallbackSnapshot snapshot = CallbackSnapshot.EMPTY;
+		/** Created on demand while statistics are enabled. */
+		volatile HookStats.MemberRecorder stats;
+		/** Whether all callbacks are paused. Guarded by this object, like {@link #pausedCallbacks}. */
+		private boolean paused;
+		private Set<XC_MethodHook> pausedCallbacks;
+
+		private AdditionalHookInfo(Member hookMethod) {
+			if (runtime == RUNTIME_ART) {
+				parameterTypes = null;
+				returnType = null;
+			} else if (hookMethod instanceof Method) {
+				parameterTypes = ((Method) hookMethod).getParameterTypes();
+				returnType = ((Method) hookMethod).getReturnType();
+			} else {
+				parameterTypes = ((Constructor<?>) hookMethod).getParameterTypes();
+				returnType = null;
+			}
+		}
 
-		private AdditionalHookInfo(CopyOnWriteSortedSet<XC_MethodHook> callbacks, Class<?>[] parameterTypes, Class<?> returnType) {
-			this.callbacks = callbacks;
-			this.parameterTypes = parameterTypes;
-			this.returnType = returnType;
+		HookStats.MemberRecorder getStatsRecorder() {
+			HookStats.MemberRecorder recorder = stats;
+			if (recorder == null) {
+				synchronized (this) {
+					recorder = stats;
+					if (recorder == null)
+						stats = recorder = new HookStats.MemberRecorder();
+				}
+			}
+			return recorder;
+		}
+
+		synchronized void addCallback(XC_MethodHook callback) {
+			if (callbacks.add(callback))
+				refreshSnapshot();
+		}
+
+		synchronized void addCallbacks(Collection<XC_MethodHook> newCallbacks) {
+			if (callbacks.addAll(newCallbacks))
+				refreshSnapshot();
+		}
+
+		synchronized void removeCallback(XC_MethodHook callback) {
+			if (callbacks.remove(callback)) {
+				if (pausedCallbacks != null)
+					pausedCallbacks.remove(callback);
+				refreshSnapshot();
+			}
+		}
+
+		/**
+		 * Removes the callbacks which are out of scope for the current process.
+		 *
+		 * @return {@code true} if this has removed the last callbacks, so that calls of the method
+		 *         go to the original method directly.
+		 */
+		synchronized boolean removeOutOfScopeCallbacks() {
+			List<XC_MethodHook> outOfScope = null;
+			for (Object element : callbacks.getSnapshot()) {
+				XC_MethodHook callback = (XC_MethodHook) element;
+				if (!isInScope(callback)) {
+					if (outOfScope == null)
+						outOfScope = new ArrayList<>();
+					outOfScope.add(callback);
+				}
+			}
+
+			if (outOfScope == null || !callbacks.removeAll(outOfScope))
+				return false;
+
+			if (pausedCallbacks != null)
+				pausedCallbacks.removeAll(outOfScope);
+			refreshSnapshot();
+			return snapshot == CallbackSnapshot.EMPTY && callbacks.getSnapshot().length == 0;
+		}
+
+		synchronized void setPaused(boolean paused) {
+			if (this.paused != paused) {
+				this.paused = paused;
+				refreshSnapshot();
+			}
+		}
+
+		synchronized boolean isPaused() {
+			return paused;
+		}
+
+		synchronized void setCallbackPaused(XC_MethodHook callback, boolean paused) {
+			if (!callbacks.contains(callback))
+				return;
+
+			if (pausedCallbacks == null)
+				pausedCallbacks = Collections.newSetFromMap(new IdentityHashMap<XC_MethodHook, Boolean>());
+			if (paused ? pausedCallbacks.add(callback) : pausedCallbacks.remove(callback))
+				refreshSnapshot();
+		}
+
+		synchronized boolean isCallbackPaused(XC_MethodHook callback) {
+			return pausedCallbacks != null && pausedCallbacks.contains(callback);
+		}
+
+		private boolean isActive(XC_MethodHook callback) {
+			return !callback.quarantined && (pausedCallbacks == null || !pausedCallbacks.contains(callback))
+					&& isInScope(callback);
+		}
+
+		/**
+		 * Rebuilds the snapshot from the current callbacks, leaving out quarantined, paused and
+		 * out-of-scope ones.
+		 * This way, the dispatcher doesn't need to check these states for each call.
+		 */
+		synchronized void refreshSnapshot() {
+			if (paused) {
+				snapshot = CallbackSnapshot.EMPTY;
+				return;
+			}
+
+			Object[] elements = callbacks.getSnapshot();
+			int active = 0;
+			for (Object element : elements) {
+				if (isActive((XC_MethodHook) element))
+					active++;
+			}
+
+			if (active != elements.length) {
+				Object[] activeElements = new Object[active];
+				active = 0;
+				for (Object element : elements) {
+					if (isActive((XC_MethodHook) element))
+						activeElements[active++] = element;
+				}
+				elements = activeElements;
+			}
+			snapshot = (elements.length != 0) ? new CallbackSnapshot(elements) : CallbackSnapshot.EMPTY;
+		}
+	}
+
+	/**
+	 * The callbacks of a hooked method, split by the phase in which they have to be called.
+	 * Callbacks which don't override {@link XC_MethodHook#beforeHookedMethod} or
+	 * {@link XC_MethodHook#afterHookedMethod} are left out of the respective array.
+	 */
+	private static final class CallbackSnapshot {
+		static final CallbackSnapshot EMPTY = new CallbackSnapshot(EMPTY_ARRAY);
+
+		/** The total number of callbacks. */
+		final int length;
+		/** All callbacks, ordered by priority. */
+		final XC_MethodHook[] all;
+		final XC_MethodHook[] before;
+		final XC_MethodHook[] after;
+		/** The positions of the callbacks in the complete list, ordered by priority. */
+		final int[] beforeIdx;
+		final int[] afterIdx;
+
+		/**
+		 * The guards of the callbacks by their position in the complete list, or {@code null}
+		 * if none of them has a guard.
+		 */
+		final XC_MethodHook.Guard[] guards;
+
+		/** Set if all callbacks allow reusing their parameter objects. */
+		final boolean recycleParams;
+
+		/** Set if the only callback is an {@link XC_MethodReplacement}, which can be called directly. */
+		final XC_MethodReplacement replacement;
+		/** Set if the only callback always returns {@link #constantResult}. */
+		final boolean isConstant;
+		final Object constantResult;
+
+		private CallbackSnapshot(Object[] elements) {
+			length = elements.length;
+			all = new XC_MethodHook[length];
+			System.arraycopy(elements, 0, all, 0, length);
+			XC_MethodHook.Guard[] guards = null;
+			boolean recycleParams = length > 0;
+			for (int i = 0; i < length; i++) {
+				recycleParams &= all[i].recycleParams;
+				XC_MethodHook.Guard guard = all[i].guard;
+				if (guard != null) {
+					if (guards == null)
+						guards = new XC_MethodHook.Guard[length];
+					guards[i] = guard;
+				}
+			}
+			this.guards = guards;
+			this.recycleParams = recycleParams;
+
+			// Non-reentrant replacements need the generic dispatching, which calls the original method for nested calls.
+			if (length == 1 && elements[0] instanceof XC_MethodReplacement && all[0].activeDepth == null) {
+				replacement = (XC_MethodReplacement) elements[0];
+				isConstant = replacement instanceof XC_MethodReplacement.ReturnConstant;
+				constantResult = isConstant ? ((XC_MethodReplacement.ReturnConstant) replacement).result : null;
+			} else {
+				replacement = null;
+				isConstant = false;
+				constantResult = null;
+			}
+
+			int beforeCount = 0, afterCount = 0;
+			int[] phases = new int[length];
+			for (int i = 0; i < length; i++) {
+				phases[i] = ((XC_MethodHook) elements[i]).getOverriddenPhases();
+				if ((phases[i] & XC_MethodHook.PHASE_BEFORE) != 0)
+					beforeCount++;
+				if ((phases[i] & XC_MethodHook.PHASE_AFTER) != 0)
+					afterCount++;
+			}
+
+			before = new XC_MethodHook[beforeCount];
+			beforeIdx = new int[beforeCount];
+			after = new XC_MethodHook[afterCount];
+			afterIdx = new int[afterCount];
+			beforeCount = afterCount = 0;
+			for (int i = 0; i < length; i++) {
+				if ((phases[i] & XC_MethodHook.PHASE_BEFORE) != 0) {
+					before[beforeCount] = (XC_MethodHook) elements[i];
+					beforeIdx[beforeCount++] = i;
+				}
+				if ((phases[i] & XC_MethodHook.PHASE_AFTER) != 0) {
+					after[afterCount] = (XC_MethodHook) elements[i];
+					afterIdx[afterCount++] = i;
+				}
+			}
 		}
 	}
 }
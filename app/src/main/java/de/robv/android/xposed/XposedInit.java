@@ -67,6 +67,7 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 	private static final String startClassName = XposedBridge.getStartClassName();
 
 	private static final String INSTALLER_PACKAGE_NAME = "de.robv.android.xposed.installer";
+	private static final String SYSTEM_SERVER_PROCESS_NAME = "system_server";
 	@SuppressLint("SdCardPath")
 	private static final String BASE_DIR = Build.VERSION.SDK_INT >= 24
 			? "/data/user_de/0/" + INSTALLER_PACKAGE_NAME + "/"
@@ -116,6 +117,9 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 					XposedBridge.disableHooks = true;
 					return;
 				}
+				String processName = (String) getObjectField(param.args[0], "processName");
+				XposedBridge.removeOutOfScopeCallbacks(reportedPackageName, processName);
+
 				CompatibilityInfo compatInfo = (CompatibilityInfo) getObjectField(param.args[0], "compatInfo");
 				if (appInfo.sourceDir == null)
 					return;
@@ -127,7 +131,7 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 
 				XC_LoadPackage.LoadPackageParam lpparam = new XC_LoadPackage.LoadPackageParam(XposedBridge.sLoadedPackageCallbacks);
 				lpparam.packageName = reportedPackageName;
-				lpparam.processName = (String) getObjectField(param.args[0], "processName");
+				lpparam.processName = processName;
 				lpparam.classLoader = loadedApk.getClassLoader();
 				lpparam.appInfo = appInfo;
 				lpparam.isFirstApplication = true;
@@ -145,6 +149,7 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 						@Override
 						protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
 							SELinuxHelper.initForProcess("android");
+							XposedBridge.removeOutOfScopeCallbacks("android", SYSTEM_SERVER_PROCESS_NAME);
 							loadedPackagesInProcess.add("android");
 
 							XC_LoadPackage.LoadPackageParam lpparam = new XC_LoadPackage.LoadPackageParam(XposedBridge.sLoadedPackageCallbacks);
@@ -165,6 +170,7 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 						@Override
 						protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
 							SELinuxHelper.initForProcess("android");
+							XposedBridge.removeOutOfScopeCallbacks("android", SYSTEM_SERVER_PROCESS_NAME);
 							loadedPackagesInProcess.add("android");
 
 							XC_LoadPackage.LoadPackageParam lpparam = new XC_LoadPackage.LoadPackageParam(XposedBridge.sLoadedPackageCallbacks);
@@ -507,15 +513,17 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 
 		ZipFile zipFile = null;
 		InputStream is;
+		ZipEntry manifestEntry;
 		try {
 			zipFile = new ZipFile(apk);
 			ZipEntry zipEntry = zipFile.getEntry("assets/xposed_init");
-			if (zipEntry == null) {
+			manifestEntry = XposedBridge.isZygote ? zipFile.getEntry(HookManifest.ASSET_NAME) : null;
+			if (zipEntry == null && manifestEntry == null) {
 				Log.e(TAG, "  assets/xposed_init not found in the APK");
 				closeSilently(zipFile);
 				return;
 			}
-			is = zipFile.getInputStream(zipEntry);
+			is = (zipEntry != null) ? zipFile.getInputStream(zipEntry) : null;
 		} catch (IOException e) {
 			Log.e(TAG, "  Cannot read assets/xposed_init in the APK", e);
 			closeSilently(zipFile);
@@ -523,6 +531,28 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 		}
 
 		ClassLoader mcl = new PathClassLoader(apk, XposedBridge.BOOTCLASSLOADER);
+
+		HookManifest manifest = null;
+		if (manifestEntry != null) {
+			InputStream manifestStream = null;
+			try {
+				Log.i(TAG, "  Loading hooks from " + HookManifest.ASSET_NAME);
+				manifestStream = zipFile.getInputStream(manifestEntry);
+				manifest = HookManifest.parse(manifestStream, apk, mcl);
+				if (manifest.hasHooks())
+					XposedBridge.hookLoadPackage(manifest.createHookInstaller());
+			} catch (IOException e) {
+				Log.e(TAG, "  Cannot read " + HookManifest.ASSET_NAME + " in the APK", e);
+			} finally {
+				closeSilently(manifestStream);
+			}
+		}
+
+		if (is == null) {
+			closeSilently(zipFile);
+			return;
+		}
+
 		BufferedReader moduleClassesReader = new BufferedReader(new InputStreamReader(is));
 		try {
 			String moduleClassName;
@@ -552,11 +582,15 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 							((IXposedHookZygoteInit) moduleInstance).initZygote(param);
 						}
 
-						if (moduleInstance instanceof IXposedHookLoadPackage)
-							XposedBridge.hookLoadPackage(new IXposedHookLoadPackage.Wrapper((IXposedHookLoadPackage) moduleInstance));
+						if (moduleInstance instanceof IXposedHookLoadPackage) {
+							XC_LoadPackage callback = new IXposedHookLoadPackage.Wrapper((IXposedHookLoadPackage) moduleInstance);
+							XposedBridge.hookLoadPackage((manifest != null) ? manifest.restrict(callback) : callback);
+						}
 
-						if (moduleInstance instanceof IXposedHookInitPackageResources)
-							XposedBridge.hookInitPackageResources(new IXposedHookInitPackageResources.Wrapper((IXposedHookInitPackageResources) moduleInstance));
+						if (moduleInstance instanceof IXposedHookInitPackageResources) {
+							XC_InitPackageResources callback = new IXposedHookInitPackageResources.Wrapper((IXposedHookInitPackageResources) moduleInstance);
+							XposedBridge.hookInitPackageResources((manifest != null) ? manifest.restrict(callback) : callback);
+						}
 					} else {
 						if (moduleInstance instanceof IXposedHookCmdInit) {
 							IXposedHookCmdInit.StartupParam param = new IXposedHookCmdInit.StartupParam();
@@ -2,7 +2,7 @@ package de.robv.android.xposed.callbacks;
 
 import android.os.Bundle;
 
-import java.io.Serializable;
+import java.util.Arrays;
 
 import de.robv.android.xposed.XposedBridge;
 import de.robv.android.xposed.XposedBridge.CopyOnWriteSortedSet;
@@ -42,6 +42,9 @@ public abstract class XCallback implements Comparable<XCallback> {
 		/** @hide */
 		public final Object[] callbacks;
 		private Bundle extra;
+		/** Keys and values stored with {@link #setObjectExtra}, alternating. */
+		private Object[] objectExtras;
+		private int objectExtrasSize;
 
 		/** @deprecated This constructor can't be hidden for technical reasons. Nevertheless, don't use it! */
 		@Deprecated
@@ -60,6 +63,9 @@ public abstract class XCallback implements Comparable<XCallback> {
 		 * <p>Use this instead of instance variables, as it has a clear reference to e.g. each
 		 * separate call to a method, even when the same method is called recursively.
 		 *
+		 * <p>The {@link Bundle} is only created when this method is called. To pass objects between
+		 * callbacks, {@link #setObjectExtra} and {@link #getObjectExtra} are more efficient.
+		 *
 		 * @see #setObjectExtra
 		 * @see #getObjectExtra
 		 */
@@ -73,26 +79,51 @@ public abstract class XCallback implements Comparable<XCallback> {
 		 * Returns an object stored with {@link #setObjectExtra}.
 		 */
 		public Object getObjectExtra(String key) {
-			Serializable o = getExtra().getSerializable(key);
-			if (o instanceof SerializeWrapper)
-				return ((SerializeWrapper) o).object;
+			Object[] extras = objectExtras;
+			for (int i = 0; i < objectExtrasSize; i += 2) {
+				if (key.equals(extras[i]))
+					return extras[i + 1];
+			}
 			return null;
 		}
 
 		/**
-		 * Stores any object for the scope of the callback. For data types that support it, use
-		 * the {@link Bundle} returned by {@link #getExtra} instead.
+		 * Stores any object for the scope of the callback, e.g. to pass it from
+		 * {@code beforeHookedMethod()} to {@code afterHookedMethod()}.
+		 *
+		 * <p>Objects are kept in a small array, which is much cheaper than the {@link Bundle}
+		 * returned by {@link #getExtra}. Unlike that bundle, they must not be accessed by multiple
+		 * threads at the same time.
 		 */
 		public void setObjectExtra(String key, Object o) {
-			getExtra().putSerializable(key, new SerializeWrapper(o));
+			Object[] extras = objectExtras;
+			for (int i = 0; i < objectExtrasSize; i += 2) {
+				if (key.equals(extras[i])) {
+					extras[i + 1] = o;
+					return;
+				}
+			}
+
+			if (extras == null)
+				objectExtras = extras = new Object[8];
+			else if (objectExtrasSize == extras.length)
+				objectExtras = extras = Arrays.copyOf(extras, extras.length * 2);
+			extras[objectExtrasSize] = key;
+			extras[objectExtrasSize + 1] = o;
+			objectExtrasSize += 2;
 		}
 
-		private static class SerializeWrapper implements Serializable {
-			private static final long serialVersionUID = 1L;
-			private final Object object;
-			public SerializeWrapper(Object o) {
-				object = o;
-			}
+		/**
+		 * Removes all data stored with {@link #getExtra} and {@link #setObjectExtra}, so that
+		 * this object can be used for another call.
+		 * @hide
+		 */
+		protected synchronized void clearExtras() {
+			if (extra != null)
+				extra.clear();
+			if (objectExtras != null)
+				Arrays.fill(objectExtras, 0, objectExtrasSize, null);
+			objectExtrasSize = 0;
 		}
 	}
 